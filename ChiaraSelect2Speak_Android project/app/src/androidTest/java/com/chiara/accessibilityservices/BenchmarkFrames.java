@@ -0,0 +1,70 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.util.DisplayMetrics;
+
+import org.junit.Assume;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* The fixed set of screenshots the instrumented benchmarks run on: the FrameStore files in the
+ * DIRECTORY subfolder of the app external files dir, in name order. Copy them there from the
+ * frames dumped with MainService.save_screenshots, to compare devices or versions on the same
+ * images:
+ *   adb shell cp <external files dir>/screenshots/*.frame <external files dir>/ocr_benchmark/
+ *   ./gradlew connectedAndroidTest
+ * The timings are logged; the benchmarks are skipped when the set is empty. */
+class BenchmarkFrames {
+    static final String DIRECTORY = "ocr_benchmark";
+
+    static Context getContext() {
+        return InstrumentationRegistry.getTargetContext();
+    }
+
+    /* A pool sized to the display, as in MainService. */
+    static BitmapPool newBitmapPool() {
+        DisplayMetrics metrics = getContext().getResources().getDisplayMetrics();
+        return new BitmapPool(metrics.widthPixels, metrics.heightPixels);
+    }
+
+    /* Reads the set into bitmaps of bitmapPool, to be released by the caller. */
+    static List<Bitmap> load(BitmapPool bitmapPool) throws IOException {
+        File directory = new File(getContext().getExternalFilesDir(null), DIRECTORY);
+        File[] files = directory.listFiles();
+        ArrayList<Bitmap> frames = new ArrayList<>();
+
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.getName().endsWith(FrameStore.EXTENSION)) frames.add(FrameStore.read(file, bitmapPool));
+            }
+        }
+
+        Assume.assumeFalse("No frames in " + directory, frames.isEmpty());
+        return frames;
+    }
+
+    static void release(List<Bitmap> frames, BitmapPool bitmapPool) {
+        for (Bitmap frame : frames) bitmapPool.releaseBitmap(frame);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/* Instrumented benchmark: saves and loads each screenshot of BenchmarkFrames through the previous
+ * JPEG path (Bitmap.compress + BitmapFactory.decodeFile) and through FrameStore, and logs timings,
+ * file sizes and how many pixels the JPEG round-trip changed. */
+@RunWith(AndroidJUnit4.class)
+public class FrameStoreBenchmark {
+    private static final String DEBUG_TAG = "[Chiara_FrameStoreBenchmark]";
+
+    private static final int ITERATIONS = 5;
+
+    @Test
+    public void compareWithJpeg() throws IOException {
+        BitmapPool bitmap_pool = BenchmarkFrames.newBitmapPool();
+        List<Bitmap> frames = BenchmarkFrames.load(bitmap_pool);
+
+        for (Bitmap frame : frames) {
+            Log.i(DEBUG_TAG, "[compareWithJpeg] " + run(frame, BenchmarkFrames.getContext().getCacheDir(), bitmap_pool));
+        }
+        BenchmarkFrames.release(frames, bitmap_pool);
+    }
+
+    static String run(Bitmap screenshot, File directory, BitmapPool bitmapPool) throws IOException {
+        File jpeg_file = new File(directory, "benchmark.jpg");
+        File frame_file = new File(directory, "benchmark" + FrameStore.EXTENSION);
+
+        long jpeg_write_ns = 0, jpeg_read_ns = 0, frame_write_ns = 0, frame_read_ns = 0;
+        Bitmap jpeg_bitmap = null, frame_bitmap = null;
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (jpeg_bitmap != null) jpeg_bitmap.recycle();
+            bitmapPool.releaseBitmap(frame_bitmap);
+
+            // JPEG
+            long t0 = System.nanoTime();
+            try (FileOutputStream fos = new FileOutputStream(jpeg_file)) {
+                screenshot.compress(Bitmap.CompressFormat.JPEG, 100, fos);
+            }
+            long t1 = System.nanoTime();
+            jpeg_bitmap = BitmapFactory.decodeFile(jpeg_file.getAbsolutePath());
+            long t2 = System.nanoTime();
+
+            // raw frame
+            FrameStore.write(frame_file, screenshot);
+            long t3 = System.nanoTime();
+            frame_bitmap = FrameStore.read(frame_file, bitmapPool);
+            long t4 = System.nanoTime();
+
+            jpeg_write_ns  += t1 - t0;
+            jpeg_read_ns   += t2 - t1;
+            frame_write_ns += t3 - t2;
+            frame_read_ns  += t4 - t3;
+        }
+
+        String report = "[" + screenshot.getWidth() + "x" + screenshot.getHeight() + ", mean of " + ITERATIONS + "]"
+                + " JPEG: write " + (jpeg_write_ns / ITERATIONS / 1000000) + " ms, read " + (jpeg_read_ns / ITERATIONS / 1000000) + " ms, "
+                + (jpeg_file.length() / 1024) + " KB, " + countChangedPixels(screenshot, jpeg_bitmap) + " pixels changed"
+                + " - FrameStore: write " + (frame_write_ns / ITERATIONS / 1000000) + " ms, read " + (frame_read_ns / ITERATIONS / 1000000) + " ms, "
+                + (frame_file.length() / 1024) + " KB, " + countChangedPixels(screenshot, frame_bitmap) + " pixels changed";
+
+        // clean up
+        if (jpeg_bitmap != null) jpeg_bitmap.recycle();
+        bitmapPool.releaseBitmap(frame_bitmap);
+        jpeg_file.delete();
+        frame_file.delete();
+
+        return report;
+    }
+
+    private static int countChangedPixels(Bitmap a, Bitmap b) {
+        if (b == null || a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) return -1;
+
+        int width = a.getWidth();
+        int[] row_a = new int[width];
+        int[] row_b = new int[width];
+        int changed = 0;
+
+        for (int y = 0; y < a.getHeight(); y++) {
+            a.getPixels(row_a, 0, width, 0, y, width, 1);
+            b.getPixels(row_b, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                if (row_a[x] != row_b[x]) changed++;
+            }
+        }
+
+        return changed;
+    }
+}
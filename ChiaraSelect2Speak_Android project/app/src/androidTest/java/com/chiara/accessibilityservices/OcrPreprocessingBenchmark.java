@@ -0,0 +1,135 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.google.android.gms.vision.text.TextRecognizer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+/* Instrumented benchmark: recognizes the screenshots of BenchmarkFrames raw and through each
+ * OcrPreprocessor stage, and logs the mean time (preprocessing included) and how much of the raw
+ * text is still recognized. */
+@RunWith(AndroidJUnit4.class)
+public class OcrPreprocessingBenchmark {
+    private static final String DEBUG_TAG = "[Chiara_OcrPreprocessingBenchmark]";
+
+    private static final int ITERATIONS = 3;
+    private static final String[] STAGES = { "raw", "gray", "gray+contrast", "gray+contrast+downscale" };
+
+    @Test
+    public void compareStages() throws IOException {
+        BitmapPool bitmap_pool = BenchmarkFrames.newBitmapPool();
+        List<Bitmap> frames = BenchmarkFrames.load(bitmap_pool);
+
+        Log.i(DEBUG_TAG, "[compareStages] " + run(BenchmarkFrames.getContext(), frames, bitmap_pool, MainService.TARGET_TEXT_HEIGHT));
+        BenchmarkFrames.release(frames, bitmap_pool);
+    }
+
+    static String run(Context context, List<Bitmap> images, BitmapPool bitmapPool, int target_text_height) {
+        TextRecognizer text_recognizer = new TextRecognizer.Builder(context).build();
+        TiledRecognizer recognizer = new TiledRecognizer(new TextRecognizer[] { text_recognizer }, bitmapPool);
+        recognizer.setTileSize(TiledRecognizer.NO_TILING);
+
+        OcrPreprocessor gray = new OcrPreprocessor(bitmapPool, false, OcrPreprocessor.NO_DOWNSCALE);
+        OcrPreprocessor contrast = new OcrPreprocessor(bitmapPool, true, OcrPreprocessor.NO_DOWNSCALE);
+        OcrPreprocessor downscale = new OcrPreprocessor(bitmapPool, true, target_text_height);
+        OcrPreprocessor[] preprocessors = { null, gray, contrast, downscale };
+
+        long[] elapsed_ns = new long[STAGES.length];
+        float[] agreement = new float[STAGES.length];
+
+        for (Bitmap image : images) {
+            List<TextBox> raw_words = null;
+
+            for (int stage = 0; stage < STAGES.length; stage++) {
+                OcrPreprocessor preprocessor = preprocessors[stage];
+                TextIndex text = null;
+
+                for (int i = 0; i < ITERATIONS; i++) {
+                    long t0 = System.nanoTime();
+                    if (preprocessor == null) {
+                        text = recognizer.detect(image);
+                    }
+                    else {
+                        Bitmap processed = preprocessor.process(image, preprocessor.getScale(OcrPreprocessor.SCREEN, image.getWidth(), image.getHeight()));
+                        text = recognizer.detect(processed);
+                        bitmapPool.releaseBitmap(processed);
+                    }
+                    elapsed_ns[stage] += System.nanoTime() - t0;
+                }
+
+                List<TextBox> words = text.getBoxes(TextBox.ELEMENT);
+                if (stage == 0) {
+                    raw_words = words;
+                    // downscale to the text height of the raw recognition
+                    downscale.setTextHeight(OcrPreprocessor.SCREEN, OcrPreprocessor.medianLineHeight(text.getBoxes(TextBox.LINE)));
+                }
+                agreement[stage] += wordAgreement(raw_words, words);
+            }
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append("[").append(images.size()).append(" images from ").append(BenchmarkFrames.DIRECTORY)
+                .append(", mean of ").append(ITERATIONS).append("]");
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            long mean_ms = elapsed_ns[stage] / ITERATIONS / images.size() / 1000000;
+            long saved_ms = (elapsed_ns[0] - elapsed_ns[stage]) / ITERATIONS / images.size() / 1000000;
+
+            report.append(" - ").append(STAGES[stage]).append(": ").append(mean_ms).append(" ms");
+            if (stage > 0) {
+                report.append(" (").append(saved_ms).append(" ms saved), ")
+                        .append(Math.round(100 * agreement[stage] / images.size())).append("% of raw words");
+            }
+        }
+
+        // clean up
+        recognizer.release(); // and text_recognizer
+
+        return report.toString();
+    }
+
+    /* Number of words of a also found in b (counting repeated words), over the number of words of
+     * the longer of the two. */
+    static float wordAgreement(List<TextBox> a, List<TextBox> b) {
+        if (a.isEmpty()) return b.isEmpty() ? 1 : 0;
+
+        HashMap<String, Integer> remaining = new HashMap<>();
+        for (TextBox word : b) {
+            Integer count = remaining.get(word.text);
+            remaining.put(word.text, count == null ? 1 : count + 1);
+        }
+
+        int found = 0;
+        for (TextBox word : a) {
+            Integer count = remaining.get(word.text);
+            if (count != null && count > 0) {
+                remaining.put(word.text, count - 1);
+                found++;
+            }
+        }
+
+        return (float) found / Math.max(a.size(), b.size());
+    }
+}
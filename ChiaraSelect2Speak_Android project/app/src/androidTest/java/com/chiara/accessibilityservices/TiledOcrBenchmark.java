@@ -0,0 +1,97 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.google.android.gms.vision.text.TextRecognizer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.List;
+
+/* Instrumented benchmark: recognizes each screenshot of BenchmarkFrames with TiledRecognizer for
+ * each tile size and number of workers (up to those of MainService), and logs the mean latency
+ * and the number of words found (which should not change much with the tiling, or the merge of
+ * the tiles is losing text). */
+@RunWith(AndroidJUnit4.class)
+public class TiledOcrBenchmark {
+    private static final String DEBUG_TAG = "[Chiara_TiledOcrBenchmark]";
+
+    private static final int ITERATIONS = 3;
+    private static final int[] TILE_SIZES = { TiledRecognizer.NO_TILING, 1024, 768, 512 };
+
+    @Test
+    public void compareTiling() throws IOException {
+        BitmapPool bitmap_pool = BenchmarkFrames.newBitmapPool();
+        List<Bitmap> frames = BenchmarkFrames.load(bitmap_pool);
+        int max_workers = Math.max(1, Math.min(MainService.MAX_OCR_WORKERS, Runtime.getRuntime().availableProcessors()));
+
+        for (Bitmap frame : frames) {
+            Log.i(DEBUG_TAG, "[compareTiling] " + run(BenchmarkFrames.getContext(), frame, bitmap_pool, max_workers));
+        }
+        BenchmarkFrames.release(frames, bitmap_pool);
+    }
+
+    static String run(Context context, Bitmap screenshot, BitmapPool bitmapPool, int max_workers) {
+        StringBuilder report = new StringBuilder();
+        report.append("[").append(screenshot.getWidth()).append("x").append(screenshot.getHeight())
+                .append(", mean of ").append(ITERATIONS).append("]");
+
+        for (int workers = 1; workers <= max_workers; workers *= 2) {
+            // released with tiled_recognizer
+            TextRecognizer[] recognizers = new TextRecognizer[workers];
+            for (int i = 0; i < workers; i++) {
+                recognizers[i] = new TextRecognizer.Builder(context).build();
+            }
+            TiledRecognizer tiled_recognizer = new TiledRecognizer(recognizers, bitmapPool);
+
+            for (int tile_size : TILE_SIZES) {
+                // a single worker is only compared to the untiled recognition
+                if (tile_size == TiledRecognizer.NO_TILING && workers > 1) continue;
+                tiled_recognizer.setTileSize(tile_size);
+
+                // warm up
+                TextIndex text = tiled_recognizer.detect(screenshot);
+
+                long elapsed_ns = 0;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    long t0 = System.nanoTime();
+                    text = tiled_recognizer.detect(screenshot);
+                    elapsed_ns += System.nanoTime() - t0;
+                }
+
+                int tiles = TiledRecognizer.computeTiles(screenshot.getWidth(), screenshot.getHeight(),
+                        tile_size, TiledRecognizer.TILE_OVERLAP).size();
+
+                report.append(" - ")
+                        .append(tile_size == TiledRecognizer.NO_TILING ? "whole" : "tile " + tile_size)
+                        .append(" (").append(tiles).append(" tiles), ")
+                        .append(workers).append(" workers: ")
+                        .append(elapsed_ns / ITERATIONS / 1000000).append(" ms, ")
+                        .append(text.getBoxes(TextBox.ELEMENT).size()).append(" words");
+            }
+
+            tiled_recognizer.release();
+        }
+
+        return report.toString();
+    }
+}
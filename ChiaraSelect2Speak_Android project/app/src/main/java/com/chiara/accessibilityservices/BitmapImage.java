@@ -0,0 +1,38 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.graphics.Bitmap;
+
+/* An OcrImage backed by a bitmap. */
+class BitmapImage implements OcrImage {
+    final Bitmap bitmap;
+
+    BitmapImage(Bitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    @Override public int getWidth() {
+        return bitmap.getWidth();
+    }
+
+    @Override public int getHeight() {
+        return bitmap.getHeight();
+    }
+
+    @Override public void getRow(int y, int[] row) {
+        bitmap.getPixels(row, 0, bitmap.getWidth(), 0, y, bitmap.getWidth(), 1);
+    }
+}
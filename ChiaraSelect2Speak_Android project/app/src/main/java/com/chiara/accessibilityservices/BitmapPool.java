@@ -0,0 +1,183 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/* Pool of reusable ARGB_8888 bitmaps and pixel buffers, shared by the capture, crop and drawing
+ * stages, so that a selection does not allocate new full-screen buffers (and trigger GC pauses
+ * during the drag).
+ * Bitmaps are keyed by size; when no bitmap of the exact size is free, a larger free bitmap is
+ * reconfigured. The pool is sized to the display, see setDisplaySize().
+ * The content of an acquired bitmap or buffer is undefined. */
+class BitmapPool {
+    private static final int BYTES_PER_PIXEL = 4; // ARGB_8888
+    private static final int FULL_SCREEN_BUFFERS = 3; // free memory kept by the pool, in full-screen buffers
+
+    // free bitmaps, by size
+    private final HashMap<Long, ArrayDeque<Bitmap>> free_bitmaps = new HashMap<>();
+    // free pixel buffers
+    private final ArrayList<ByteBuffer> free_buffers = new ArrayList<>();
+
+    private long max_bytes;
+    private long free_bytes = 0;
+    private int display_width = 0, display_height = 0;
+
+    // counters
+    private int bitmap_hits = 0, bitmap_reconfigured = 0, bitmap_misses = 0;
+    private int buffer_hits = 0, buffer_misses = 0;
+
+    BitmapPool(int width, int height) {
+        setDisplaySize(width, height);
+    }
+
+    /* Resizes the pool to the display, e.g. after a rotation. Returns true if the size changed. */
+    synchronized boolean setDisplaySize(int width, int height) {
+        if (width == display_width && height == display_height) return false;
+
+        display_width = width;
+        display_height = height;
+        max_bytes = (long) FULL_SCREEN_BUFFERS * width * height * BYTES_PER_PIXEL;
+        trim();
+
+        return true;
+    }
+
+    /****************************************** Bitmaps *******************************************/
+    synchronized Bitmap acquireBitmap(int width, int height) {
+        // same size
+        ArrayDeque<Bitmap> bucket = free_bitmaps.get(key(width, height));
+        if (bucket != null && !bucket.isEmpty()) {
+            Bitmap bitmap = bucket.pop();
+            free_bytes -= bitmap.getAllocationByteCount();
+            bitmap_hits++;
+            return bitmap;
+        }
+
+        // smallest larger bitmap, reconfigured to the requested size
+        int needed = width * height * BYTES_PER_PIXEL;
+        Bitmap best = null;
+        for (ArrayDeque<Bitmap> candidates : free_bitmaps.values()) {
+            Bitmap candidate = candidates.peek();
+            if (candidate != null
+                    && candidate.getAllocationByteCount() >= needed
+                    && (best == null || candidate.getAllocationByteCount() < best.getAllocationByteCount())) {
+                best = candidate;
+            }
+        }
+        if (best != null) {
+            free_bitmaps.get(key(best.getWidth(), best.getHeight())).pop();
+            free_bytes -= best.getAllocationByteCount();
+            best.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+            bitmap_reconfigured++;
+            return best;
+        }
+
+        // new bitmap
+        bitmap_misses++;
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    synchronized void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            bitmap.recycle();
+            return;
+        }
+
+        long k = key(bitmap.getWidth(), bitmap.getHeight());
+        ArrayDeque<Bitmap> bucket = free_bitmaps.get(k);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            free_bitmaps.put(k, bucket);
+        }
+        bucket.push(bitmap);
+        free_bytes += bitmap.getAllocationByteCount();
+        trim();
+    }
+
+    /****************************************** Buffers *******************************************/
+    /* Returns a heap buffer with at least the given capacity, cleared and limited to it. */
+    synchronized ByteBuffer acquireBuffer(int capacity) {
+        // smallest free buffer large enough
+        int best = -1;
+        for (int i = 0; i < free_buffers.size(); i++) {
+            int c = free_buffers.get(i).capacity();
+            if (c >= capacity && (best < 0 || c < free_buffers.get(best).capacity())) {
+                best = i;
+            }
+        }
+
+        ByteBuffer buffer;
+        if (best >= 0) {
+            buffer = free_buffers.remove(best);
+            free_bytes -= buffer.capacity();
+            buffer_hits++;
+        }
+        else {
+            buffer = ByteBuffer.allocate(capacity);
+            buffer_misses++;
+        }
+
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    synchronized void releaseBuffer(ByteBuffer buffer) {
+        if (buffer == null) return;
+
+        free_buffers.add(buffer);
+        free_bytes += buffer.capacity();
+        trim();
+    }
+
+    /****************************************** Stats *********************************************/
+    synchronized String getStats() {
+        return "bitmaps: " + bitmap_hits + " hits, " + bitmap_reconfigured + " reconfigured, " + bitmap_misses + " misses"
+                + " - buffers: " + buffer_hits + " hits, " + buffer_misses + " misses"
+                + " - free: " + (free_bytes / 1024) + "/" + (max_bytes / 1024) + " KB";
+    }
+
+    /****************************************** Private *******************************************/
+    private static long key(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+
+    // drops free buffers, then free bitmaps, until the pool fits in max_bytes
+    private void trim() {
+        while (free_bytes > max_bytes && !free_buffers.isEmpty()) {
+            ByteBuffer buffer = free_buffers.remove(0);
+            free_bytes -= buffer.capacity();
+        }
+
+        Iterator<ArrayDeque<Bitmap>> buckets = free_bitmaps.values().iterator();
+        while (free_bytes > max_bytes && buckets.hasNext()) {
+            ArrayDeque<Bitmap> bucket = buckets.next();
+            while (free_bytes > max_bytes && !bucket.isEmpty()) {
+                Bitmap bitmap = bucket.pop();
+                free_bytes -= bitmap.getAllocationByteCount();
+                bitmap.recycle();
+            }
+            if (bucket.isEmpty()) buckets.remove();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/* Stores frames on disk as raw RGBA pixels, through memory-mapped files.
+ * Compared to JPEG there is no encode/decode step and no compression artifacts (which hurt OCR of
+ * small fonts): reading a frame back is a copy from the mapped file into a pooled bitmap.
+ *
+ * File layout (little endian):
+ *   int magic, int version, int width, int height, int row_bytes, int format
+ *   height rows of row_bytes bytes (RGBA_8888, no padding) */
+class FrameStore {
+    static final String EXTENSION = ".frame";
+
+    private static final int MAGIC = 0x46325343; // "CS2F"
+    private static final int VERSION = 1;
+    private static final int FORMAT_RGBA_8888 = 1;
+    private static final int HEADER_BYTES = 6 * 4;
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int WIDTH_OFFSET = 2 * 4, HEIGHT_OFFSET = 3 * 4;
+
+    /* Writes the whole frame straight from the ImageReader plane. */
+    static void write(File file, ScreenFrame frame) throws IOException {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+
+        MappedByteBuffer mapped = create(file, width, height);
+        if (!frame.copyRegionTo(mapped, 0, 0, width, height)) {
+            throw new IOException("frame closed before being written to " + file);
+        }
+        mapped.force();
+    }
+
+    static void write(File file, Bitmap bitmap) throws IOException {
+        MappedByteBuffer mapped = create(file, bitmap.getWidth(), bitmap.getHeight());
+        bitmap.copyPixelsToBuffer(mapped);
+        mapped.force();
+    }
+
+    /* Reads a frame back into a bitmap taken from the pool, without any decoding step. */
+    static Bitmap read(File file, BitmapPool bitmapPool) throws IOException {
+        MappedByteBuffer mapped = open(file);
+        Bitmap bitmap = bitmapPool.acquireBitmap(getWidth(mapped), getHeight(mapped));
+        bitmap.copyPixelsFromBuffer(mapped);
+        return bitmap;
+    }
+
+    /* Creates (or truncates) file for a width x height frame, writes the header and maps the file,
+     * positioned on the first pixel. The mapping stays valid after the file is closed. */
+    static MappedByteBuffer create(File file, int width, int height) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(HEADER_BYTES + (long) width * height * BYTES_PER_PIXEL);
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            writeHeader(mapped, width, height);
+            return mapped;
+        }
+    }
+
+    /* Maps a frame file read-only, positioned on the first pixel; throws if the header is not
+     * valid or the file is truncated. */
+    static MappedByteBuffer open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (raf.length() < HEADER_BYTES) {
+                throw new IOException("not a valid frame file: " + file);
+            }
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            int magic     = mapped.getInt();
+            int version   = mapped.getInt();
+            int width     = mapped.getInt();
+            int height    = mapped.getInt();
+            int row_bytes = mapped.getInt();
+            int format    = mapped.getInt();
+
+            if (magic != MAGIC || version != VERSION || format != FORMAT_RGBA_8888
+                    || width <= 0 || height <= 0
+                    || row_bytes != width * BYTES_PER_PIXEL
+                    || raf.length() < HEADER_BYTES + (long) row_bytes * height) {
+                throw new IOException("not a valid frame file: " + file);
+            }
+            return mapped;
+        }
+    }
+
+    /* Size of the frame mapped by create() or open(). */
+    static int getWidth(ByteBuffer mapped) {
+        return mapped.getInt(WIDTH_OFFSET);
+    }
+
+    static int getHeight(ByteBuffer mapped) {
+        return mapped.getInt(HEIGHT_OFFSET);
+    }
+
+    private static void writeHeader(MappedByteBuffer mapped, int width, int height) {
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        mapped.putInt(MAGIC);
+        mapped.putInt(VERSION);
+        mapped.putInt(width);
+        mapped.putInt(height);
+        mapped.putInt(width * BYTES_PER_PIXEL);
+        mapped.putInt(FORMAT_RGBA_8888);
+    }
+}
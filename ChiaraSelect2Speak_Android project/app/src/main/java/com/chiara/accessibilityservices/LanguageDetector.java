@@ -0,0 +1,157 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/* Offline language identification of short game texts, with character trigrams: each language
+ * is a table of trigram frequencies, learnt from a built-in sample text when the detector is
+ * created, and a text is given the language under which its trigrams are most likely (naive
+ * Bayes, with add-one smoothing).
+ * Texts too short to tell, or equally likely in two languages, are not given a language: the
+ * caller keeps the language of the text around them.
+ * Pure Java, cheap enough to run on every block (a few microseconds per word). */
+class LanguageDetector {
+    private static final int MIN_LETTERS = 8;          // shorter texts are not detected
+    private static final double MIN_MARGIN = 1.5;      // min log-likelihood margin over the second best language
+
+    // sample texts of the supported languages, by ISO 639 code
+    private static final HashMap<String, String> SAMPLES = new HashMap<>();
+    static {
+        SAMPLES.put("it",
+                "Il gioco \u00e8 iniziato. Premi il pulsante per continuare e scegli il tuo personaggio. Hai" +
+                " trovato una chiave d'oro nel castello, ma la porta della torre \u00e8 ancora chiusa. Vuoi " +
+                "salvare la partita prima di uscire? Le opzioni del livello sono nel menu principale. " +
+                "Questo \u00e8 un messaggio per te: la missione non \u00e8 finita, devi tornare al villaggio e " +
+                "parlare con il mercante. Attenzione, gli avversari sono pi\u00f9 forti di notte. Non " +
+                "dimenticare di raccogliere le monete e le pozioni. Grazie per aver giocato, ci vediamo" +
+                " alla prossima avventura! Che cosa vuoi fare adesso? Perch\u00e9 non provi ancora? di che e" +
+                " la il un a per non in una sono mi ho lo ma ti ha le si con cosa questo se io come da " +
+                "ci no del della gli tutto anche nella sei gi\u00e0 pu\u00f2 cos\u00ec qui quando");
+        SAMPLES.put("en",
+                "The game has started. Press the button to continue and choose your character. You " +
+                "found a golden key in the castle, but the door of the tower is still locked. Do you " +
+                "want to save the game before you quit? The level options are in the main menu. This is" +
+                " a message for you: the quest is not over, you have to go back to the village and talk" +
+                " with the merchant. Watch out, the enemies are stronger at night. Don't forget to " +
+                "collect the coins and the potions. Thank you for playing, see you in the next " +
+                "adventure! What would you like to do now? Why don't you try again? the of and to a in " +
+                "is you that it he was for on are as with his they at be this have from or one had by " +
+                "but not what all were we when your can said there which their will would");
+        SAMPLES.put("fr",
+                "Le jeu a commenc\u00e9. Appuie sur le bouton pour continuer et choisis ton personnage. Tu " +
+                "as trouv\u00e9 une cl\u00e9 d'or dans le ch\u00e2teau, mais la porte de la tour est encore ferm\u00e9e. " +
+                "Veux-tu sauvegarder la partie avant de quitter ? Les options du niveau sont dans le " +
+                "menu principal. Ceci est un message pour toi : la qu\u00eate n'est pas finie, tu dois " +
+                "retourner au village et parler avec le marchand. Attention, les ennemis sont plus " +
+                "forts pendant la nuit. N'oublie pas de ramasser les pi\u00e8ces et les potions. Merci " +
+                "d'avoir jou\u00e9, \u00e0 bient\u00f4t pour la prochaine aventure ! Qu'est-ce que tu veux faire " +
+                "maintenant ? Pourquoi ne pas r\u00e9essayer ? de la le et les des en un du une que est pour" +
+                " qui dans par plus pas au sur ne se ce il sont avec ils cette aux \u00e9t\u00e9 nous vous mais " +
+                "ou o\u00f9 tr\u00e8s leur faut m\u00eame aussi");
+    }
+
+    private static class Profile {
+        final Locale locale;
+        final HashMap<String, Integer> counts = new HashMap<>();
+        int total = 0;
+
+        Profile(Locale locale) {
+            this.locale = locale;
+        }
+    }
+
+    private final ArrayList<Profile> profiles = new ArrayList<>();
+    private final int vocabulary; // number of distinct trigrams over all profiles, for smoothing
+
+    /* Detects the given languages, among the supported ones; the others are ignored. */
+    LanguageDetector(Locale[] languages) {
+        HashMap<String, Boolean> trigrams = new HashMap<>();
+
+        for (Locale language : languages) {
+            String sample = SAMPLES.get(language.getLanguage());
+            if (sample == null) continue;
+
+            Profile profile = new Profile(language);
+            for (String trigram : trigrams(sample)) {
+                Integer count = profile.counts.get(trigram);
+                profile.counts.put(trigram, count == null ? 1 : count + 1);
+                profile.total++;
+                trigrams.put(trigram, true);
+            }
+            profiles.add(profile);
+        }
+
+        vocabulary = trigrams.size();
+    }
+
+    static boolean isSupported(Locale language) {
+        return SAMPLES.containsKey(language.getLanguage());
+    }
+
+    /* Returns the most likely language of text, or null if it cannot be told. */
+    Locale detect(String text) {
+        if (profiles.size() == 1) return profiles.get(0).locale;
+
+        ArrayList<String> trigrams = trigrams(text);
+        if (trigrams.size() < MIN_LETTERS) return null;
+
+        Profile best = null;
+        double best_score = Double.NEGATIVE_INFINITY, second_score = Double.NEGATIVE_INFINITY;
+        for (Profile profile : profiles) {
+            double score = 0;
+            for (String trigram : trigrams) {
+                Integer count = profile.counts.get(trigram);
+                score += Math.log(((count == null ? 0 : count) + 1.0) / (profile.total + vocabulary));
+            }
+
+            if (score > best_score) {
+                second_score = best_score;
+                best_score = score;
+                best = profile;
+            }
+            else if (score > second_score) {
+                second_score = score;
+            }
+        }
+
+        if (best == null || best_score - second_score < MIN_MARGIN) return null;
+        return best.locale;
+    }
+
+    // trigrams of the lowercase words of text, padded with a space on each side ("_ci", "cia",
+    // "iao", "ao_"): digits and punctuation separate words
+    private static ArrayList<String> trigrams(String text) {
+        ArrayList<String> trigrams = new ArrayList<>();
+        StringBuilder word = new StringBuilder(" ");
+
+        for (int i = 0; i <= text.length(); i++) {
+            char c = (i < text.length()) ? Character.toLowerCase(text.charAt(i)) : ' ';
+
+            if (Character.isLetter(c) || (c == '\'' && word.length() > 1)) {
+                word.append(c);
+            }
+            else if (word.length() > 1) {
+                word.append(' ');
+                for (int j = 0; j + 3 <= word.length(); j++) trigrams.add(word.substring(j, j + 3));
+                word.setLength(1);
+            }
+        }
+
+        return trigrams;
+    }
+}
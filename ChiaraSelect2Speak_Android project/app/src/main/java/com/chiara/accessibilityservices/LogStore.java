@@ -0,0 +1,222 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+
+/* Stores log records on disk in a compact binary format, as numbered segment files in a directory:
+ * a segment is closed and a new one started when it grows over max_segment_bytes or gets older than
+ * max_segment_age, and the oldest segments are deleted to keep the directory within max_total_bytes.
+ * Segments are numbered in sequence (never overwritten), and the directory is only listed when the
+ * store is opened. LogDecoder, in the unit test sources, turns them back into text.
+ *
+ * Segment layout (big endian, varints are unsigned LEB128):
+ *   int magic, byte version, long wall clock time of the start [ms]
+ *   records, each starting with a byte type:
+ *     RECORD_TAG: varint tag ID, varint length, UTF-8 tag        (a tag, before its first use)
+ *     RECORD_LOG: byte level, varint tag ID, varint time since the previous record (or the start)
+ *                 [ms, monotonic], varint length, UTF-8 message
+ * Tag IDs are interned per segment, so that each segment can be decoded on its own.
+ *
+ * Plain Java, see LogDecoder. Not thread-safe: called by the RingLog writer thread. */
+class LogStore {
+    static final String EXTENSION = ".clog";
+
+    static final int MAGIC = 0x434c4f47; // "CLOG"
+    static final int VERSION = 1;
+    static final int RECORD_TAG = 1;
+    static final int RECORD_LOG = 2;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final long max_segment_bytes;
+    private final long max_segment_age;     // [ms]
+    private final long max_total_bytes;
+
+    // closed segments, oldest first, and their total size
+    private final ArrayDeque<File> segments = new ArrayDeque<>();
+    private long closed_bytes = 0;
+    private int next_sequence = 0;
+
+    // current segment
+    private OutputStream out;
+    private File segment;
+    private long segment_bytes;
+    private long segment_start_ns;           // System.nanoTime() when the segment was started
+    private long last_record_ms;             // [ms] time of the last record, since segment_start_ns
+    private final HashMap<String, Integer> tag_ids = new HashMap<>();
+
+    private final byte[] varint = new byte[10];
+
+    LogStore(File directory, long max_segment_bytes, long max_segment_age, long max_total_bytes) throws IOException {
+        this.directory = directory;
+        this.max_segment_bytes = max_segment_bytes;
+        this.max_segment_age = max_segment_age;
+        this.max_total_bytes = max_total_bytes;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+
+        // existing segments, in sequence order
+        File[] files = segmentFiles(directory);
+        for (File file : files) {
+            segments.add(file);
+            closed_bytes += file.length();
+            next_sequence = Math.max(next_sequence, sequenceOf(file) + 1);
+        }
+
+        startSegment();
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /* Appends a record; time_ns is a System.nanoTime() timestamp. */
+    void append(long time_ns, int level, String tag, String message) throws IOException {
+        if (segment_bytes >= max_segment_bytes || (time_ns - segment_start_ns) / 1000000 >= max_segment_age) {
+            closeSegment();
+            startSegment();
+        }
+
+        Integer tag_id = tag_ids.get(tag);
+        if (tag_id == null) {
+            tag_id = tag_ids.size();
+            tag_ids.put(tag, tag_id);
+
+            write(RECORD_TAG);
+            writeVarint(tag_id);
+            writeString(tag);
+        }
+
+        long time_ms = Math.max(last_record_ms, (time_ns - segment_start_ns) / 1000000);
+        write(RECORD_LOG);
+        write(level);
+        writeVarint(tag_id);
+        writeVarint(time_ms - last_record_ms);
+        writeString(message);
+        last_record_ms = time_ms;
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    void close() throws IOException {
+        closeSegment();
+    }
+
+    /****************************************** Segments ******************************************/
+    private void startSegment() throws IOException {
+        segment = new File(directory, String.format(Locale.ROOT, "%08d", next_sequence++) + EXTENSION);
+        out = new BufferedOutputStream(new FileOutputStream(segment), 8192);
+        segment_bytes = 0;
+        segment_start_ns = System.nanoTime();
+        last_record_ms = 0;
+        tag_ids.clear();
+
+        writeInt(MAGIC);
+        write(VERSION);
+        writeLong(System.currentTimeMillis());
+
+        enforceBudget();
+    }
+
+    private void closeSegment() throws IOException {
+        if (out == null) return;
+
+        out.close();
+        out = null;
+        segments.add(segment);
+        closed_bytes += segment.length();
+    }
+
+    // deletes the oldest segments, so that the current one can grow to its max size within budget
+    private void enforceBudget() {
+        while (!segments.isEmpty() && closed_bytes + max_segment_bytes > max_total_bytes) {
+            File oldest = segments.poll();
+            closed_bytes -= oldest.length();
+            oldest.delete();
+        }
+    }
+
+    /* Segment files of directory, oldest first. */
+    static File[] segmentFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) return new File[0];
+
+        int n = 0;
+        for (File file : files) {
+            if (sequenceOf(file) >= 0) files[n++] = file;
+        }
+        files = Arrays.copyOf(files, n);
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static int sequenceOf(File file) {
+        String name = file.getName();
+        if (!name.endsWith(EXTENSION)) return -1;
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /****************************************** Encoding ******************************************/
+    private void write(int b) throws IOException {
+        out.write(b);
+        segment_bytes++;
+    }
+
+    private void writeVarint(long value) throws IOException {
+        int n = 0;
+        while ((value & ~0x7fL) != 0) {
+            varint[n++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        varint[n++] = (byte) value;
+
+        out.write(varint, 0, n);
+        segment_bytes += n;
+    }
+
+    private void writeString(String text) throws IOException {
+        byte[] bytes = text.getBytes(UTF_8);
+        writeVarint(bytes.length);
+        out.write(bytes);
+        segment_bytes += bytes.length;
+    }
+
+    private void writeInt(int value) throws IOException {
+        for (int shift = 24; shift >= 0; shift -= 8) write(value >>> shift);
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+}
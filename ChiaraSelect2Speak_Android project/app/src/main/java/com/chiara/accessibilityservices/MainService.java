@@ -18,16 +18,19 @@ import android.accessibilityservice.AccessibilityService;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Paint;
 import android.graphics.PixelFormat;
-import android.graphics.PorterDuff;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.media.projection.MediaProjection;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.Trace;
 import android.speech.tts.TextToSpeech;
 import android.util.Log;
-import android.util.SparseArray;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
@@ -36,22 +39,20 @@ import android.view.WindowManager;
 import android.view.accessibility.AccessibilityEvent;
 import android.widget.Button;
 import android.widget.FrameLayout;
-import android.widget.ImageView;
 import android.widget.Toast;
 
-import com.google.android.gms.vision.Frame;
-import com.google.android.gms.vision.text.TextBlock;
 import com.google.android.gms.vision.text.TextRecognizer;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 /* This service provides an entry point to the Chiara_Select2Speak service. */
-public class MainService extends AccessibilityService implements View.OnTouchListener {
+public class MainService extends AccessibilityService implements View.OnTouchListener, ScreenCaptureSession.OnScreenshotListener, ScreenshotActivity.OnProjectionListener, OcrWorker.Callback, Speaker.Listener {
     // service name used inside logs
     private static final String DEBUG_TAG = "[Chiara_MainService]";
 
@@ -70,46 +71,124 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
     // area selection
     int previous_action=0, current_action=0;
     int x0, x1, y0, y1, current_x, current_y;
+    // tap selection: selections smaller than TAP_SLOP read the text nearest to the touched point
+    private static final int TAP_SLOP = 20;             // [px]
+    private static final int TAP_MAX_DISTANCE = 150;    // [px] max distance from the touched point to the text
+    boolean tap_reads_block = false;                    // read the whole paragraph instead of the nearest line
+    // touch moves are coalesced: the selection is redrawn at most once per frame, with the latest
+    // position, by draw_selection_callback
+    Choreographer choreographer;
+    Choreographer.FrameCallback draw_selection_callback;
+    boolean draw_pending = false;
+    long first_pending_move_time;                       // [ms, uptime] oldest move not drawn yet
+    // input-to-frame latency of the current drag
+    int drag_moves, drag_frames;
+    long drag_latency_sum, drag_latency_max;            // [ms]
     // GUI
-    ImageView image_view;
-    Bitmap bitmapDrawingPane;
-    Canvas canvasDrawingPane;
-    Paint paint;
+    SelectionOverlayView selection_overlay;
+    // reusable bitmaps and buffers, for the capture, crop and drawing stages
+    BitmapPool bitmap_pool;
 
     // screenshot
-    private static int DELAY_SCREENSHOT = 1000; // delay [ms] to wait for ScreenshotActivity to capture all images
-    Bitmap latest_screenshot_bitmap;
-
-    // TextRecognizer
+    private static int TIMEOUT_SCREENSHOT = 5000; // timeout [ms] after which a screenshot that has not been delivered by capture_session is considered lost
+    ScreenCaptureSession capture_session;
+    ScreenshotStore screenshot_store;   // latest screenshot, and its generation
+    private static final String SCREENSHOTS_DIRECTORY = "screenshots"; // frames dumped by screenshot_store when save_screenshots
+    Handler handler;
+    Runnable screenshot_timeout_runnable;
+
+    // OCR engine, run on a background thread by ocr_worker
     TextRecognizer text_recognizer;
-
-    // TextToSpeech engine
+    OcrEngine ocr_engine;
+    OcrWorker ocr_worker;
+    // large bitmaps are recognized as tiles, in parallel, by one TextRecognizer per core
+    TiledRecognizer tiled_recognizer;
+    static int MAX_OCR_WORKERS = 4; // each TextRecognizer holds its own models in memory
+    // bitmaps are converted to grayscale, contrast-stretched and downscaled before recognition
+    OcrPreprocessor ocr_preprocessor;
+    boolean preprocess_ocr = true;
+    boolean normalize_contrast = true;
+    static int TARGET_TEXT_HEIGHT = 40; // [px] height of text after downscaling, OcrPreprocessor.NO_DOWNSCALE to disable
+    int ocr_pending_requests = 0;
+    long first_text_pending_since = 0;  // time [ms] of the first selection waiting for its first line of text, 0 if none
+    // text of recently recognized selections, a repeated selection skips TextRecognizer
+    OcrCache ocr_cache;
+    private static int OCR_CACHE_BYTES = 256 * 1024; // memory budget [bytes] of ocr_cache
+
+    // speculative OCR of the whole screenshot, started as soon as it is captured: a released
+    // selection is read from screen_text_index instead of recognizing the cropped screenshot
+    boolean speculative_ocr = true;
+    TextIndex screen_text_index;        // text of the latest screenshot, null until recognized
+    boolean screen_ocr_pending = false;
+    Rect pending_selection;             // selection released while the screenshot was being recognized
+    // every selection is a job, cancelled by the next one or by Stop: its capture, recognition and
+    // queued speech are dropped as soon as selection_generation changes
+    int selection_generation = 0;
+    int screenshot_request_generation = 0; // selection_generation of the pending screenshot request
+
+    // TextToSpeech engine, and utterance progress
     private TextToSpeech tts;
+    Speaker speaker;
+    // synthesized audio of the phrases spoken repeatedly, played instead of synthesizing them again
+    SpeechCache speech_cache;
+    private static long SPEECH_CACHE_BYTES = 20 * 1024 * 1024; // disk budget [bytes] of speech_cache
     boolean remove_newlines = true;
-
-    // MyLog class
-    MyLog my_log;
+    TextBatcher text_batcher;               // joins short blocks and splits long ones into utterances
+    // languages of the games' text, each block is spoken in the language detected by language_detector
+    private static final Locale[] LANGUAGES = { Locale.ITALIAN, Locale.ENGLISH, Locale.FRENCH }; // the first is the default
+    LanguageDetector language_detector;
+    Locale reading_language = LANGUAGES[0]; // language of the last block read, for blocks too short to detect
+    boolean deactivate_when_spoken = false; // go back to idle once the queued text has been spoken
+
+    // log, to logcat and to binary segments in PATH/LOG_DIRECTORY (see LogDecoder), written off the main thread
+    RingLog my_log;
+    private static final String LOG_DIRECTORY = "logs";
+    private static final int LOG_CAPACITY = 1024;           // [records] buffered before being written
+    private static final long LOG_BYTES = 4 * 1024 * 1024;  // disk budget [bytes] of the log segments
+
+    // metrics of the pipeline, printed by dump() and written every METRICS_WRITE_INTERVAL to
+    // metrics_file on metrics_thread, one file per service start in PATH/METRICS_DIRECTORY.
+    // On API 27, "dumpsys accessibility" only prints the system's record of each bound service, it
+    // does not call the service's dump(): read them with
+    //   adb shell dumpsys activity service com.chiara.accessibilityservices/.MainService [reset]
+    PipelineMetrics metrics;
+    File metrics_file;
+    HandlerThread metrics_thread;
+    Handler metrics_handler;
+    Runnable write_metrics_runnable;
+    private static final String METRICS_DIRECTORY = "metrics";
+    private static int METRICS_WRITE_INTERVAL = 10 * 60 * 1000; // [ms]
+    long screenshot_requested_at = 0;   // time [ms] of the pending screenshot request
+    long first_audio_pending_since = 0; // time [ms] the current selection was released, 0 once it is heard
+    int selection_blocks = 0;           // blocks spoken for the current selection
 
     // goodies
     String tts_welcome_message = "Ciao scimmiotta, ti voglio bene da Luca";
+    private static int DELAY_WELCOME_MESSAGE = 1000; // delay [ms] before speaking the welcome message
 
     // debug
     boolean verbose_ontouch = false;
+    boolean trace_touch_latency = false; // name the systrace sections of the selection frames after their input latency, and log it per drag
     boolean lovely_start    = false;
+    boolean save_screenshots = false;      // dump every screenshot to PATH/SCREENSHOTS_DIRECTORY, see ScreenshotStore
+    int trace_pipeline_every = 0;          // trace one Start every N, from the press to the first audio, into PATH/TRACE_DIRECTORY (0 = off), see PipelineTrace
+    private static final String TRACE_DIRECTORY = "traces";
 
     //
     //@SuppressLint("ResourceType")
     @Override protected void onServiceConnected() {
         // ---------------------------------------------------------------
-        // Setup PATH and MyLog
+        // Setup PATH and log
         // ---------------------------------------------------------------
         File externalFilesDir = getExternalFilesDir(null);
         if (externalFilesDir != null) {
             PATH = externalFilesDir.getAbsolutePath() + "/";
-            my_log = new MyLog(PATH);
+            my_log = new RingLog(new File(PATH, LOG_DIRECTORY), LOG_BYTES, LOG_CAPACITY, RingLog.OVERFLOW_DROP_OLDEST);
+            my_log.i(DEBUG_TAG, "[onServiceConnected] Logging to: " + my_log.getDirectory().getAbsolutePath());
 
-            Log.i(DEBUG_TAG, "[onServiceConnected] PATH initialized to: " + PATH);
             my_log.i(DEBUG_TAG, "[onServiceConnected] PATH initialized to: " + PATH);
+
+            PipelineTrace.setup(new File(PATH, TRACE_DIRECTORY), trace_pipeline_every);
         }
         else {
             Log.e(DEBUG_TAG, "[onServiceConnected] Failed to create file storage directory, getExternalFilesDir() returned null.");
@@ -120,7 +199,6 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
         // ---------------------------------------------------------------
         // Say hello :)
         // ---------------------------------------------------------------
-        Log.i(DEBUG_TAG, "[onServiceConnected] Hello world! Setting-up...");
         my_log.i(DEBUG_TAG, "[onServiceConnected] Hello world! Setting-up...");
 
 
@@ -138,7 +216,6 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
             // isOperational() can be used to check if the required native libraries are currently
             // available. The detectors will automatically become operational once the library
             // downloads complete on device.
-            Log.e(DEBUG_TAG, "[onServiceConnected] Detector dependencies are not available");
             my_log.e(DEBUG_TAG, "[onServiceConnected] Detector dependencies are not available");
 
             // Check for low storage.  If there is low storage, the native library will not be
@@ -148,12 +225,10 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
 
             if (hasLowStorage) {
                 Toast.makeText(this, "[onServiceConnected] Low storage space available", Toast.LENGTH_LONG).show();
-                Log.e(DEBUG_TAG, "[onServiceConnected] Low storage space available");
                 my_log.e(DEBUG_TAG, "[onServiceConnected] Low storage space available");
             }
         }
         else {
-            Log.i(DEBUG_TAG, "[onServiceConnected] OCR correctly setup");
             my_log.i(DEBUG_TAG, "[onServiceConnected] OCR correctly setup");
         }
 
@@ -161,8 +236,53 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
         // ---------------------------------------------------------------
         // Setup Screenshoter
         // ---------------------------------------------------------------
-        // delete previous screenshots
-        deletePNGFilesInFolder(PATH);
+        // receive screenshots in memory, as soon as they are captured
+        handler = new Handler();
+        screenshot_timeout_runnable = new Runnable() {
+            @Override
+            public void run() {
+                onScreenshotFailed();
+            }
+        };
+        Point display_size = new Point();
+        ((WindowManager) getSystemService(WINDOW_SERVICE)).getDefaultDisplay().getSize(display_size);
+        bitmap_pool = new BitmapPool(display_size.x, display_size.y);
+
+        capture_session = new ScreenCaptureSession(this, bitmap_pool);
+        screenshot_store = new ScreenshotStore(new File(PATH, SCREENSHOTS_DIRECTORY), save_screenshots);
+        ScreenshotActivity.setOnProjectionListener(this);
+
+        // recognize text off the main thread
+        int ocr_workers = Math.max(1, Math.min(MAX_OCR_WORKERS, Runtime.getRuntime().availableProcessors()));
+        // the recognizers (text_recognizer included) are released by tiled_recognizer, see OcrWorker.release()
+        TextRecognizer[] recognizers = new TextRecognizer[ocr_workers];
+        recognizers[0] = text_recognizer;
+        for (int i = 1; i < ocr_workers; i++) {
+            recognizers[i] = new TextRecognizer.Builder(getApplicationContext()).build();
+        }
+        tiled_recognizer = new TiledRecognizer(recognizers, bitmap_pool);
+        ocr_cache = new OcrCache(OCR_CACHE_BYTES);
+        ocr_preprocessor = preprocess_ocr ? new OcrPreprocessor(bitmap_pool, normalize_contrast, TARGET_TEXT_HEIGHT) : null;
+        ocr_engine = new VisionOcrEngine(tiled_recognizer, ocr_preprocessor, bitmap_pool);
+        metrics = new PipelineMetrics(Build.MANUFACTURER + " " + Build.MODEL);
+        metrics_file = new File(PATH + METRICS_DIRECTORY, System.currentTimeMillis() + ".txt");
+        ocr_worker = new OcrWorker(ocr_engine, bitmap_pool, ocr_cache, metrics);
+        metrics_thread = new HandlerThread("MetricsThread", Process.THREAD_PRIORITY_BACKGROUND);
+        metrics_thread.start();
+        metrics_handler = new Handler(metrics_thread.getLooper());
+        write_metrics_runnable = new Runnable() {
+            @Override
+            public void run() {
+                writeMetrics();
+                metrics_handler.postDelayed(write_metrics_runnable, METRICS_WRITE_INTERVAL);
+            }
+        };
+        metrics_handler.postDelayed(write_metrics_runnable, METRICS_WRITE_INTERVAL);
+
+        my_log.i(DEBUG_TAG, "[onServiceConnected] OCR engine: " + ocr_engine.getName());
+
+        // delete previous screenshots, in the background
+        screenshot_store.deleteOldFiles(new File(PATH));
         // get first screenshot, to setup activity and ask for permissions
         takeScreenshot();
 
@@ -180,69 +300,22 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
         // hide stop button
         final Button button_stop = (Button) mLayout.findViewById(R.id.stop);
         button_stop.setVisibility(View.GONE);
-        Log.i(DEBUG_TAG, "[onServiceConnected] mLayout setup");
         my_log.i(DEBUG_TAG, "[onServiceConnected] mLayout setup");
 
-        // Wait for takeScreenshot() to finish his job
-        Log.i(DEBUG_TAG, "[onServiceConnected] Waiting for takeScreenshot() to return...");
-        my_log.i(DEBUG_TAG, "[onServiceConnected] Waiting for takeScreenshot() to return...");
-
-        final Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
+        // setup selection overlay
+        selection_overlay = (SelectionOverlayView) mLayout.findViewById(R.id.selection_overlay);
+        selection_overlay.setVisibility(View.GONE);
+        choreographer = Choreographer.getInstance();
+        draw_selection_callback = new Choreographer.FrameCallback() {
             @Override
-            public void run() {
-                // info
-                Log.i(DEBUG_TAG, "[onServiceConnected] DELAY_SCREENSHOT elapsed");
-                my_log.i(DEBUG_TAG, "[onServiceConnected] DELAY_SCREENSHOT elapsed");
-
-                // load latest screenshot
-                latest_screenshot_bitmap = loadScreenshotBitmap();
-
-                // setup bitmaps and drawing panes
-                if (latest_screenshot_bitmap != null) {
-                    //Log.i(DEBUG_TAG, "[onServiceConnected] screenshot loaded successfully");
-
-                    Bitmap.Config config;
-                    if (latest_screenshot_bitmap.getConfig() != null) {
-                        config = latest_screenshot_bitmap.getConfig();
-                    }
-                    else {
-                        config = Bitmap.Config.ARGB_8888;
-                    }
-
-                    // Create bitmap of same size for drawing
-                    bitmapDrawingPane = Bitmap.createBitmap(
-                            latest_screenshot_bitmap.getWidth(),
-                            latest_screenshot_bitmap.getHeight(),
-                            config);
-                    canvasDrawingPane = new Canvas(bitmapDrawingPane);
-                    image_view.setImageBitmap(bitmapDrawingPane);
-
-                    // paint
-                    paint = new Paint();
-                    paint.setStyle(Paint.Style.STROKE);
-                    paint.setColor(Color.BLUE);
-                    paint.setStrokeWidth(10);
-
-                    Log.i(DEBUG_TAG, "[onServiceConnected] Drawing objects setup");
-                    my_log.i(DEBUG_TAG, "[onServiceConnected] Drawing objects setup");
-                }
-                else {
-                    Log.e(DEBUG_TAG, "[onServiceConnected] screenshot not loaded successfully");
-                    my_log.e(DEBUG_TAG, "[onServiceConnected] screenshot not loaded successfully");
-                }
-            }//run handler
-        }, 2000 );
-
-        // setup images
-        image_view = (ImageView) mLayout.findViewById(R.id.image_view);
-        image_view.setVisibility(View.GONE);
-        Log.i(DEBUG_TAG, "[onServiceConnected] Images setup");
+            public void doFrame(long frameTimeNanos) {
+                drawPendingSelection(frameTimeNanos / 1000000);
+            }
+        };
         my_log.i(DEBUG_TAG, "[onServiceConnected] Images setup");
 
         // configure buttons
         configureButtons();
-        Log.i(DEBUG_TAG, "[onServiceConnected] Buttons setup");
         my_log.i(DEBUG_TAG, "[onServiceConnected] Buttons setup");
 
 
@@ -250,7 +323,6 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
         // Setup OnTouchListener
         // ---------------------------------------------------------------
         mLayout.setOnTouchListener(this);
-        Log.i(DEBUG_TAG, "[onServiceConnected] OnTouchListener setup");
         my_log.i(DEBUG_TAG, "[onServiceConnected] OnTouchListener setup");
 
 
@@ -262,24 +334,26 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
             @Override
             public void onInit(final int status) {
                 if (status == TextToSpeech.SUCCESS) {
-                    Log.i(DEBUG_TAG, "[onServiceConnected] Text to speech engine started successfully");
                     my_log.i(DEBUG_TAG, "[onServiceConnected] Text to speech engine started successfully");
 
-                    tts.setLanguage(Locale.ITALIAN);
+                    // load the voices of all the languages now, not in the middle of a reading
+                    speaker.setLanguages(LANGUAGES, new File(PATH));
                 }
                 else {
-                    Log.e(DEBUG_TAG, "[onServiceConnected] Error starting the Text to speech engine");
                     my_log.e(DEBUG_TAG, "[onServiceConnected] Error starting the Text to speech engine");
                 }
             }
         };
         tts = new TextToSpeech(this.getApplicationContext(), listener);
+        speech_cache = new SpeechCache(new File(PATH, SpeechCache.DIRECTORY), SPEECH_CACHE_BYTES);
+        speaker = new Speaker(tts, speech_cache, this);
+        text_batcher = new TextBatcher(TextToSpeech.getMaxSpeechInputLength(), TextBatcher.DEFAULT_BATCH_CHARS);
+        language_detector = new LanguageDetector(LANGUAGES);
 
 
         // ---------------------------------------------------------------
         // Finish setup
         // ---------------------------------------------------------------
-        Log.i(DEBUG_TAG, "[onServiceConnected] Setup done");
         my_log.i(DEBUG_TAG, "[onServiceConnected] Setup done");
 
         Toast.makeText(getBaseContext(),"Chiara_Select2Speak active!", Toast.LENGTH_SHORT).show();
@@ -290,9 +364,130 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
                 @Override
                 public void run() {
                     // speak loud first message
-                    tts.speak(tts_welcome_message, TextToSpeech.QUEUE_ADD, null, "DEFAULT");
+                    speaker.speak(tts_welcome_message);
                 }//run handler
-            }, DELAY_SCREENSHOT);
+            }, DELAY_WELCOME_MESSAGE);
+        }
+    }
+
+    @Override public void onDestroy() {
+        ScreenshotActivity.setOnProjectionListener(null);
+        if (capture_session != null) capture_session.release();
+        if (screenshot_store != null) screenshot_store.release();
+        if (ocr_worker != null) ocr_worker.release();
+        if (speech_cache != null) speech_cache.release();
+        if (handler != null) handler.removeCallbacks(screenshot_timeout_runnable);
+        if (metrics_thread != null) {
+            // wait for a periodic write in progress, then write the last metrics here
+            metrics_handler.removeCallbacks(write_metrics_runnable);
+            metrics_thread.quitSafely();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    metrics_thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+
+            writeMetrics();
+        }
+        if (my_log != null) my_log.close();
+
+        super.onDestroy();
+    }
+
+    @Override public void onProjectionGranted(MediaProjection mediaProjection) {
+        my_log.i(DEBUG_TAG, "[onProjectionGranted] Starting capture session");
+
+        // start the capture session once, and serve the screenshot that was waiting for it
+        capture_session.start(mediaProjection);
+        capture_session.requestScreenshot(this);
+    }
+
+    @Override public void onProjectionDenied() {
+        onScreenshotFailed();
+    }
+
+    @Override public void onScreenshotAvailable(ScreenFrame frame) {
+        if (screenshot_request_generation != selection_generation) return; // cancelled
+        handler.removeCallbacks(screenshot_timeout_runnable);
+        PipelineTrace.asyncEnd("capture", screenshot_request_generation);
+        long trace_start = PipelineTrace.begin();
+        metrics.screenshot_ms.record(System.currentTimeMillis() - screenshot_requested_at);
+
+        my_log.i(DEBUG_TAG, "[onScreenshotAvailable] Screenshot received: " + frame.getWidth() + "x" + frame.getHeight());
+
+        // replace latest screenshot, the previous frame is closed by capture_session
+        screenshot_store.put(frame);
+        screen_text_index = null;
+        screen_ocr_pending = false;
+        pending_selection = null;
+
+        if (service_active) {
+            Toast.makeText(getBaseContext(),"GO :)", Toast.LENGTH_SHORT).show();
+
+            // recognize the whole screenshot while the user draws the selection
+            if (speculative_ocr) {
+                indexScreenshot(frame);
+            }
+        }
+        PipelineTrace.end("onScreenshotAvailable", trace_start);
+    }
+
+    void indexScreenshot(ScreenFrame frame) {
+        final int generation = screenshot_store.getGeneration();
+        final long start_time = System.currentTimeMillis();
+        screen_ocr_pending = true;
+
+        ocr_worker.submitForIndex(frame, new OcrWorker.IndexCallback() {
+            @Override
+            public void onTextIndexed(TextIndex index) {
+                if (generation != screenshot_store.getGeneration()) return; // a newer screenshot has been taken
+
+                my_log.i(DEBUG_TAG, "[indexScreenshot] Screenshot recognized in " + (System.currentTimeMillis() - start_time) + " ms, " + index.size() + " text boxes");
+
+                screen_ocr_pending = false;
+                screen_text_index = index;
+                readPendingSelection();
+            }
+
+            @Override
+            public void onIndexingDropped() {
+                if (generation != screenshot_store.getGeneration()) return;
+
+                my_log.w(DEBUG_TAG, "[indexScreenshot] Screenshot recognition dropped");
+
+                screen_ocr_pending = false;
+                readPendingSelection();
+            }
+        });
+    }
+
+    void readPendingSelection() {
+        if (pending_selection == null) return;
+
+        Rect selection = pending_selection;
+        pending_selection = null;
+        if (ocr_pending_requests == 0) setupRecognizingStatus(false);
+
+        readSelectionText(selection);
+    }
+
+    @Override public void onScreenshotFailed() {
+        if (screenshot_request_generation != selection_generation) return; // cancelled
+        handler.removeCallbacks(screenshot_timeout_runnable);
+        PipelineTrace.asyncEnd("capture", screenshot_request_generation);
+        metrics.screenshots_failed.increment();
+
+        my_log.e(DEBUG_TAG, "[onScreenshotFailed] No screenshot");
+
+        if (service_active) {
+            setupServiceStatus( !service_active );
+
+            speaker.speak("No screenshot");
         }
     }
 
@@ -303,94 +498,34 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
         button_start.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                int result;
-
-                Log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] Pressed 'Start'");
                 my_log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] Pressed 'Start'");
 
-                // Delete previous screenshots
-                Log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] Deleting existing screenshots...");
-                my_log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] Deleting existing screenshots...");
-                result = deletePNGFilesInFolder(PATH);
-                if (result == SUCCESS) {
-                    Log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] Correctly deleted existing screenshots.");
-                    my_log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] Correctly deleted existing screenshots.");
-                }
-                else {
-                    Log.e(DEBUG_TAG, "[configureButtons::button_start::onClick] Error in deleting existing screenshots.");
-                    my_log.e(DEBUG_TAG, "[configureButtons::button_start::onClick] Error in deleting existing screenshots.");
-                }
+                // Drop the previous selection, its speech included
+                cancelSelection(true);
+                PipelineTrace.start(selection_generation);
 
-                // Take new screenshot
-                Log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] Taking new screenshot...");
+                // Take new screenshot, it is delivered to onScreenshotAvailable()
                 my_log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] Taking new screenshot...");
                 takeScreenshot();
 
-                // setup service status
+                // setup service status, a new selection must not be closed by the previous one
+                deactivate_when_spoken = false;
                 setupServiceStatus( !service_active );
-
-                // Wait for a delay for takeScreenshot() to finish his job
-                final Handler handler = new Handler();
-                handler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        // info
-                        Log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] DELAY_SCREENSHOT elapsed");
-                        my_log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] DELAY_SCREENSHOT elapsed");
-
-                        // load latest screenshot
-                        latest_screenshot_bitmap = loadScreenshotBitmap();
-
-                        if (latest_screenshot_bitmap != null) {
-                            Toast.makeText(getBaseContext(),"GO :)", Toast.LENGTH_SHORT).show();
-
-                            // set bitmap as background
-                            Log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] Setting screenshot as background...");
-                            my_log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] Setting screenshot as background...");
-                            image_view.setImageBitmap(latest_screenshot_bitmap);
-
-                            Bitmap.Config config;
-                            if (latest_screenshot_bitmap.getConfig() != null) {
-                                config = latest_screenshot_bitmap.getConfig();
-                            }
-                            else {
-                                config = Bitmap.Config.ARGB_8888;
-                            }
-
-                            // Create bitmap of same size for drawing
-                            bitmapDrawingPane = Bitmap.createBitmap(
-                                    latest_screenshot_bitmap.getWidth(),
-                                    latest_screenshot_bitmap.getHeight(),
-                                    config);
-                            canvasDrawingPane = new Canvas(bitmapDrawingPane);
-                            image_view.setImageBitmap(bitmapDrawingPane);
-
-                            //
-                            Log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] Screenshot set as background");
-                            my_log.i(DEBUG_TAG, "[configureButtons::button_start::onClick] Screenshot set as background");
-                        }
-                        else {
-                            setupServiceStatus( !service_active );
-
-                            Log.e(DEBUG_TAG, "[configureButtons::button_start::onClick] No screenshot");
-                            my_log.e(DEBUG_TAG, "[configureButtons::button_start::onClick] No screenshot");
-                        }
-                    }//run handler
-                }, DELAY_SCREENSHOT);
             }
         });
 
         button_stop.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                Log.i(DEBUG_TAG, "[configureButtons::button_stop::onClick] Pressed 'Stop'");
                 my_log.i(DEBUG_TAG, "[configureButtons::button_stop::onClick] Pressed 'Stop'");
 
                 // setup service status
                 //setupServiceStatus( !service_active );
-                if (tts.isSpeaking()) {
-                    tts.stop();
-                }
+                boolean selection_running = ocr_pending_requests > 0 || pending_selection != null || deactivate_when_spoken;
+                cancelSelection(true);
+
+                // close the selection that was being read
+                if (selection_running) finishSelection();
             }
         });
     }
@@ -414,12 +549,10 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
             // set fullscreen
             setOverlayProperties(true);
 
-            //
-            canvasDrawingPane.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-            image_view.setVisibility(View.VISIBLE);
+            selection_overlay.clearSelection();
+            selection_overlay.setVisibility(View.VISIBLE);
 
             //
-            Log.i(DEBUG_TAG, "[setupServiceStatus] Service set to active");
             my_log.i(DEBUG_TAG, "[setupServiceStatus] Service set to active");
         }
         else {
@@ -432,12 +565,10 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
             // set !fullscreen
             setOverlayProperties(false);
 
-            //
-            canvasDrawingPane.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-            image_view.setVisibility(View.GONE);
+            selection_overlay.clearSelection();
+            selection_overlay.setVisibility(View.GONE);
 
             //
-            Log.i(DEBUG_TAG, "[setupServiceStatus] Service set to not active");
             my_log.i(DEBUG_TAG, "[setupServiceStatus] Service set to not active");
         }
     }
@@ -513,14 +644,32 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
                 // store initial coordinates
                 x0 = current_x;
                 y0 = current_y;
+
+                drag_moves = drag_frames = 0;
+                drag_latency_sum = drag_latency_max = 0;
                 break;
 
             case MotionEvent.ACTION_MOVE:
-                // draw rectangle
-                drawRectangle();
+                // draw rectangle at the next frame, the batched history of the event is not needed
+                drag_moves += 1 + event.getHistorySize();
+                if (!draw_pending) {
+                    draw_pending = true;
+                    first_pending_move_time = (event.getHistorySize() > 0) ? event.getHistoricalEventTime(0) : event.getEventTime();
+                    choreographer.postFrameCallback(draw_selection_callback);
+                }
                 break;
 
             case MotionEvent.ACTION_UP :
+                // the last position is drawn right away
+                if (draw_pending) {
+                    draw_pending = false;
+                    choreographer.removeFrameCallback(draw_selection_callback);
+                }
+                if (trace_touch_latency && drag_frames > 0) {
+                    my_log.i(DEBUG_TAG, "[processMotionEvent] Drag: " + drag_moves + " moves drawn in " + drag_frames + " frames, input to frame "
+                            + (drag_latency_sum / drag_frames) + " ms mean, " + drag_latency_max + " ms max");
+                }
+
                 if (previous_action == MotionEvent.ACTION_MOVE) {
                     // store final coordinates
                     x1 = current_x;
@@ -536,20 +685,9 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
                     drawRectangle();
 
 
-                    // ------------- OCR and TTS
-                    if (latest_screenshot_bitmap != null) {
-                        // Crop screenshot to selected area
-                        Bitmap screenshot_bitmap_resized = resizeBitmap(latest_screenshot_bitmap);
-
-                        // Recognize text and speak out loud
-                        bitmapToSpeech(screenshot_bitmap_resized);
-                    }
-                    else {
-                        Log.e(DEBUG_TAG, "[processMotionEvent] null bitmap");
-                        my_log.e(DEBUG_TAG, "[processMotionEvent] null bitmap");
-
-                        tts.speak("No bitmap", TextToSpeech.QUEUE_ADD, null, "DEFAULT");
-                    }
+                    // ------------- OCR and TTS, the previous selection is dropped
+                    cancelSelection(false);
+                    readSelection(getSelectionRect());
 
                     //
                     /*try { }
@@ -558,22 +696,15 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
                         Log.e(DEBUG_TAG,"Exception: " + e);
                         tts.speak("Errore", TextToSpeech.QUEUE_ADD, null, "DEFAULT");
                     }*/
-
-                    // --- deactivate service
-                    //final Button button_stop    = (Button) mLayout.findViewById(R.id.stop);
-                    //final Button button_start   = (Button) mLayout.findViewById(R.id.start);
-                    while ( tts.isSpeaking() ) {
-                        //Log.i(DEBUG_TAG, ".");
-                        //button_start.setVisibility(View.GONE);
-                        //button_stop.setVisibility(View.VISIBLE);
-                    }
-                    //button_stop.setVisibility(View.GONE);
-                    setupServiceStatus( !service_active );
+                }
+                else if (previous_action == MotionEvent.ACTION_DOWN && service_active) {
+                    // ------------- Tap: read the text around the touched point
+                    cancelSelection(false);
+                    readSelection(new Rect(current_x, current_y, current_x, current_y));
                 }
                 break;
 
             default:
-                Log.w(DEBUG_TAG, "[onTouch] Unknown action");
                 my_log.w(DEBUG_TAG, "[onTouch] Unknown action");
         }//switch case
     }
@@ -601,7 +732,6 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
         }
 
         //Log.i(DEBUG_TAG, "Action " + event.getAction() + " - x " + String.format("%.2f", event.getRawX()) + ", y " + String.format("%.2f", event.getRawY()) );
-        Log.i(DEBUG_TAG, "[printMotionEvent] " + current_action_string + " - x " + String.format("%.2f", event.getRawX()) + ", y " + String.format("%.2f", event.getRawY()) );
         my_log.i(DEBUG_TAG, "[printMotionEvent] " + current_action_string + " - x " + String.format("%.2f", event.getRawX()) + ", y " + String.format("%.2f", event.getRawY()) );
 
         //Log.i(DEBUG_TAG, "[printMotionEvent] " + current_action_string + " - x " + event.getRawX() + ", y " + event.getRawY() );
@@ -619,113 +749,157 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
         Log.i(DEBUG_TAG," "); */
     }
 
-    int deletePNGFilesInFolder(String folder) {
-        int result = ERROR;
-        int j=0;
-        File dir = new File(folder);
-
-        if ( dir.isDirectory() ) {
-            String[] children = dir.list();
+    void takeScreenshot() {
+        long trace_start = PipelineTrace.begin();
+
+        // drop the previous screenshot, so that a selection never reads a stale one
+        screenshot_store.clear();
+        screenshot_request_generation = selection_generation;
+        PipelineTrace.asyncBegin("capture", screenshot_request_generation);
+        metrics.screenshots.increment();
+        screenshot_requested_at = System.currentTimeMillis();
+
+        // give up on the screenshot if it is not delivered in time
+        handler.removeCallbacks(screenshot_timeout_runnable);
+        handler.postDelayed(screenshot_timeout_runnable, TIMEOUT_SCREENSHOT);
+
+        if (capture_session.isActive()) {
+            // grab the latest frame from the running capture session
+            capture_session.requestScreenshot(this);
+        }
+        else {
+            // ask for the screen capture permission, the session is started in onProjectionGranted()
+            Intent dialogIntent = new Intent(this, ScreenshotActivity.class);
+            dialogIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            startActivity(dialogIntent);
+        }
 
-            for (int i=0; i<children.length; i++) {
-                // get file
-                File this_file = new File(dir, children[i]);
+        my_log.i(DEBUG_TAG, "[takeScreenshot] takeScreenshot() returned");
+        PipelineTrace.end("takeScreenshot", trace_start);
+    }
 
-                if ( (this_file.toString()).contains("png") ) {
-                    new File(dir, children[i]).delete();
-                    j = j+1;
+    /* Starts a new selection job: the text of the previous selection is not recognized nor spoken
+     * anymore. The pending screenshot request is cancelled too when cancel_capture. */
+    void cancelSelection(boolean cancel_capture) {
+        selection_generation++;
 
-                    Log.i(DEBUG_TAG, "[deleteFilesInFolder] Deleted file: " + this_file.toString());
-                    my_log.i(DEBUG_TAG, "[deleteFilesInFolder] Deleted file: " + this_file.toString());
-                }
-            }
-            //Log.i(DEBUG_TAG, "[deleteFilesInFolder] Deleted " + j + " png files in folder: " + folder);
-        }
+        my_log.i(DEBUG_TAG, "[cancelSelection] Selection " + selection_generation + " started");
 
-        //
-        if (j>0) {
-            result = SUCCESS;
+        // capture
+        if (cancel_capture) {
+            handler.removeCallbacks(screenshot_timeout_runnable);
+            capture_session.cancelScreenshotRequest();
         }
         else {
-            result = ERROR;
+            screenshot_request_generation = selection_generation;
         }
 
-        //
-        return result;
-    }
+        // OCR
+        ocr_worker.cancelSelections();
+        pending_selection = null;
+        if (ocr_pending_requests > 0) {
+            ocr_pending_requests = 0;
+            first_text_pending_since = 0;
+            setupRecognizingStatus(false);
+        }
 
-    void takeScreenshot() {
-        Intent dialogIntent = new Intent(this, ScreenshotActivity.class);
-        dialogIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        startActivity(dialogIntent);
+        // TTS, a released selection waits for its first audio
+        first_audio_pending_since = cancel_capture ? 0 : System.currentTimeMillis();
+        selection_blocks = 0;
+        reading_language = LANGUAGES[0];
+        deactivate_when_spoken = false;
+        if (speaker.isSpeaking()) {
+            speaker.stop();
+        }
+    }
 
-        Log.i(DEBUG_TAG, "[takeScreenshot] takeScreenshot() returned");
-        my_log.i(DEBUG_TAG, "[takeScreenshot] takeScreenshot() returned");
+    void readSelection(Rect selection) {
+        metrics.selections_read.increment();
+        readSelectionText(selection);
     }
 
-    Bitmap loadScreenshotBitmap() {
-        File dir = new File(PATH); // get screenshots directory
-        Bitmap screenshot_bitmap = null;
+    // reads the selection, or keeps it in pending_selection until the screenshot is recognized
+    void readSelectionText(Rect selection) {
+        boolean tap = selection.width() < TAP_SLOP && selection.height() < TAP_SLOP;
 
-        if ( dir.isDirectory() ) {
-            // get all files
-            String[] children = dir.list();
-            int Nscreenshots = 0;
+        // Read the selection out of the text recognized on the whole screenshot
+        if (screen_text_index != null) {
+            List<String> text;
+            if (tap) {
+                text = readTap(selection.centerX(), selection.centerY());
+            }
+            else {
+                text = screen_text_index.readRegion(
+                        selection.left, selection.top, selection.right, selection.bottom,
+                        remove_newlines ? " " : "\n");
+            }
 
-            // get png files
-            for (int i=0; i<children.length; i++) {
-                // get file
-                File this_file = new File(dir, children[i]);
+            if (!text.isEmpty()) {
+                PipelineTrace.instant("read from screenshot text");
+                speakBlocks(text);
+                metrics.blocks_per_selection.record(selection_blocks);
 
-                if ( (this_file.toString()).contains("png") ) {
-                    Nscreenshots = Nscreenshots+1;
-                }
+                finishSelection();
+                return;
             }
 
-            // info
-            Log.i(DEBUG_TAG, "[loadScreenshotBitmap] Found " + Nscreenshots + " screenshots");
-            my_log.i(DEBUG_TAG, "[loadScreenshotBitmap] Found " + Nscreenshots + " screenshots");
-
-            // load screenshot
-            if (Nscreenshots > 0) {
-                //String screenshot_filename = SCREENSHOTS_DIRECTORY + (Nscreenshots-1) + ".png";
-                String screenshot_filename = PATH + "0" + ".png"; // get filename of first screenshot
+            // nothing found, the cropped screenshot may still be recognized
+        }
+        // Wait for the whole screenshot to be recognized
+        else if (screen_ocr_pending) {
+            pending_selection = selection;
+            setupRecognizingStatus(true);
+            return;
+        }
 
-                // get screenshot
-                File screenshot_file = new File(screenshot_filename);
+        // Copy the selected area (or the area around the tap) out of the screenshot
+        if (tap) {
+            int x = selection.centerX(), y = selection.centerY();
+            selection = new Rect(x - TAP_MAX_DISTANCE, y - TAP_MAX_DISTANCE, x + TAP_MAX_DISTANCE, y + TAP_MAX_DISTANCE);
+        }
 
-                if( screenshot_file.exists() ) {
-                    Log.i(DEBUG_TAG, "[loadScreenshotBitmap] Loaded screenshot " +  screenshot_filename);
-                    my_log.i(DEBUG_TAG, "[loadScreenshotBitmap] Loaded screenshot " +  screenshot_filename);
+        Bitmap screenshot_bitmap_resized = null;
+        ScreenFrame screenshot_frame = screenshot_store.getLatest();
+        if (screenshot_frame != null) {
+            long trace_start = PipelineTrace.begin();
+            screenshot_bitmap_resized = resizeBitmap(screenshot_frame, selection);
+            PipelineTrace.end("resizeBitmap", trace_start);
+        }
 
-                    screenshot_bitmap = BitmapFactory.decodeFile(screenshot_file.getAbsolutePath());
-                }
-                else {
-                    Log.w(DEBUG_TAG, "[loadScreenshotBitmap] Screenshot does not exist.");
-                    my_log.w(DEBUG_TAG, "[loadScreenshotBitmap] Screenshot does not exist.");
-                }
-            }
-            else {
-                Log.e(DEBUG_TAG, "[loadScreenshotBitmap] no screenshot found. Increase DELAY_SCREENSHOT or wait a bit more before drawing the selection rectangle!");
-                my_log.e(DEBUG_TAG, "[loadScreenshotBitmap] no screenshot found. Increase DELAY_SCREENSHOT or wait a bit more before drawing the selection rectangle!");
+        if (screenshot_bitmap_resized != null) {
+            // Recognize text in the background, it is spoken out loud in onTextRecognized()
+            bitmapToSpeech(screenshot_bitmap_resized);
 
-                tts.speak("No screenshot", TextToSpeech.QUEUE_ADD, null, "DEFAULT");
-            }
+            my_log.i(DEBUG_TAG, "[readSelectionText] Bitmap pool " + bitmap_pool.getStats());
         }
         else {
-            Log.e(DEBUG_TAG, "[loadScreenshotBitmap] no screenshot directory found!");
-            my_log.e(DEBUG_TAG, "[loadScreenshotBitmap] no screenshot directory found!");
-        }
+            my_log.e(DEBUG_TAG, "[readSelectionText] null bitmap");
 
-        if (screenshot_bitmap != null) {
-            return screenshot_bitmap;
+            speaker.speak("No bitmap");
+
+            finishSelection();
         }
-        else {
-            return null;
+    }
+
+    // returns the nearest line (or paragraph) to (x, y), or nothing if no text is close enough
+    List<String> readTap(int x, int y) {
+        ArrayList<String> text = new ArrayList<>();
+
+        TextBox line = screen_text_index.nearest(x, y, TextBox.LINE, TAP_MAX_DISTANCE);
+        if (line != null) {
+            TextBox block = tap_reads_block ? screen_text_index.blockOf(line) : null;
+            String current_string = (block != null) ? block.text : line.text;
+
+            if (remove_newlines) {
+                current_string = current_string.replace("\n", " ");
+            }
+            text.add(current_string);
         }
+
+        return text;
     }
 
-    Bitmap resizeBitmap(Bitmap original) {
+    Rect getSelectionRect() {
         int x0_crop, y0_crop, width_crop, height_crop;
 
         if (x0<x1) {
@@ -761,15 +935,21 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
             }
         }
 
+        return new Rect(x0_crop, y0_crop, x0_crop + width_crop, y0_crop + height_crop);
+    }
+
+    Bitmap resizeBitmap(ScreenFrame original, Rect selection) {
+        int x0_crop = selection.left, y0_crop = selection.top;
+        int width_crop = selection.width(), height_crop = selection.height();
+
         // threshold to screen size
         if ( y0_crop + height_crop <= original.getHeight() ) {}
         else {
             height_crop = original.getHeight() - y0_crop;
         }
 
-        // resize
-        Bitmap screenshot_bitmap_resized = Bitmap.createBitmap(
-                original,
+        // copy only the selected rows and columns out of the frame (null if empty or closed)
+        Bitmap screenshot_bitmap_resized = original.copyRegion(
                 x0_crop, y0_crop,
                 width_crop, height_crop);
 
@@ -777,160 +957,204 @@ public class MainService extends AccessibilityService implements View.OnTouchLis
         return screenshot_bitmap_resized;
     }
 
-    int bitmapToSpeech(Bitmap screenshot_bitmap) {
-        int result = ERROR;
-
-        // Create frame
-        Frame screenshot_frame = new Frame.Builder().setBitmap(screenshot_bitmap).build();
+    void bitmapToSpeech(Bitmap screenshot_bitmap) {
+        // show the recognizing state until all pending requests are served
+        ocr_pending_requests++;
+        setupRecognizingStatus(true);
+        if (first_text_pending_since == 0) first_text_pending_since = System.currentTimeMillis();
 
-        // Detect text
-        SparseArray<TextBlock> text = text_recognizer.detect(screenshot_frame);
+        // Detect text on the OCR thread, ocr_worker takes ownership of the bitmap
+        ocr_worker.submit(screenshot_bitmap, this);
+    }
 
-        // If text is available
-        if (text.size() > 0) {
+    @Override public void onTextLinesReady(List<TextBox> lines) {
+        if (first_text_pending_since != 0) {
+            my_log.i(DEBUG_TAG, "[onTextLinesReady] First text ready after " + (System.currentTimeMillis() - first_text_pending_since) + " ms");
+            first_text_pending_since = 0;
+        }
 
-            // Speak out loud each item
-            for (int i=0; i<text.size(); ++i) {
-                TextBlock item = text.valueAt(i);
+        // Speak out loud the lines recognized so far, while the next ones are being recognized
+        textToSpeech(lines);
+    }
 
-                // TTS
-                if  (item != null && item.getValue() != null) {
-                    // draw bounding box
-                    /* RectF rect = new RectF( item.getBoundingBox() );
-                    Log.i(DEBUG_TAG, rect.toString() );
-                    canvasDrawingPane.drawRect(rect, paint);
-                    imageResult.invalidate(); */
+    @Override public void onTextRecognized(TextIndex text) {
+        ocr_pending_requests--;
 
-                    // get string
-                    String current_string = item.getValue();
+        my_log.i(DEBUG_TAG, "[onTextRecognized] OCR cache " + ocr_cache.getStats());
 
-                    // remove newlines (typically due to visual text formatting) to make reading more fluid
-                    if (remove_newlines) {
-                        current_string = current_string.replace("\n", " ");
-                    }
+        // the text has already been spoken by onTextLinesReady()
+        if (text.getBoxes(TextBox.LINE).isEmpty()) {
+            my_log.w(DEBUG_TAG, "[onTextRecognized] No text found");
+            metrics.selections_empty.increment();
 
-                    // Speak the string
-                    tts.speak(current_string, TextToSpeech.QUEUE_ADD, null, "DEFAULT");
+            speaker.speak("Nessun testo trovato");
+        }
 
-                    //
-                    Log.i(DEBUG_TAG, "[bitmapToSpeech] Text being spoken: " + current_string);
-                    my_log.i(DEBUG_TAG, "[bitmapToSpeech] Text being spoken: " + current_string);
+        if (ocr_pending_requests == 0) {
+            metrics.blocks_per_selection.record(selection_blocks);
+            first_text_pending_since = 0;
+            setupRecognizingStatus(false);
+            finishSelection();
+        }
+    }
 
-                    while ( tts.isSpeaking() ) {
-                        // Log.i(DEBUG_TAG, "[bitmapToSpeech] TTS is speaking...");
-                    }
+    @Override public void onRecognitionDropped() {
+        ocr_pending_requests--;
 
-                    //
-                    Log.i(DEBUG_TAG, "[bitmapToSpeech] All selected text has been spoken");
-                    my_log.i(DEBUG_TAG, "[bitmapToSpeech] All selected text has been spoken");
+        my_log.w(DEBUG_TAG, "[onRecognitionDropped] Selection dropped, or its recognition failed");
 
-                    //
-                    result = SUCCESS;
-                }
-                else {
-                    result = ERROR;
+        if (ocr_pending_requests == 0) {
+            first_text_pending_since = 0;
+            setupRecognizingStatus(false);
+            finishSelection();
+        }
+    }
 
-                    Log.w(DEBUG_TAG, "[bitmapToSpeech] Text data is null");
-                    my_log.w(DEBUG_TAG, "[bitmapToSpeech] Text data is null");
-                }
+    // speaks lines in the given order, batching the blocks into utterances
+    int textToSpeech(List<TextBox> lines) {
+        int i = 0;
+
+        // join the consecutive lines of each block
+        ArrayList<String> blocks = new ArrayList<>();
+        while (i < lines.size()) {
+            StringBuilder block_text = new StringBuilder(lines.get(i).text);
+            int block = lines.get(i).block;
+            for (i++; i < lines.size() && lines.get(i).block == block; i++) {
+                // remove newlines (typically due to visual text formatting) to make reading more fluid
+                block_text.append(remove_newlines ? " " : "\n").append(lines.get(i).text);
             }
+            blocks.add(block_text.toString());
         }
-        else {
-            result = ERROR;
 
-            Log.w(DEBUG_TAG, "[bitmapToSpeech] No text found");
-            my_log.w(DEBUG_TAG, "[bitmapToSpeech] No text found");
+        return speakBlocks(blocks);
+    }
+
+    // speaks each block in its language, batching the consecutive blocks of the same language
+    int speakBlocks(List<String> blocks) {
+        int result = ERROR;
+        int i = 0;
+
+        selection_blocks += blocks.size();
 
-            tts.speak("Nessun testo trovato", TextToSpeech.QUEUE_ADD, null, "DEFAULT");
+        // detect the language of each block, short blocks keep the language of the previous one
+        Locale[] languages = new Locale[blocks.size()];
+        for (int b = 0; b < blocks.size(); b++) {
+            Locale language = language_detector.detect(blocks.get(b));
+            if (language != null) reading_language = language;
+            languages[b] = reading_language;
+        }
+
+        while (i < blocks.size()) {
+            int start = i;
+            for (i++; i < blocks.size() && languages[i] == languages[start]; i++) { }
+
+            // Speak out loud each utterance
+            for (String current_string : text_batcher.batch(blocks.subList(start, i))) {
+                // Queue the string, its progress is followed by speaker
+                speaker.speak(current_string, languages[start]);
+
+                //
+                my_log.i(DEBUG_TAG, "[speakBlocks] Text being spoken (" + languages[start] + "): " + current_string);
+
+                //
+                result = SUCCESS;
+            }
         }
 
         //
         return result;
     }
 
-    void drawRectangle() {
-        // info
-        if (verbose_ontouch) {
-            Log.i(DEBUG_TAG, "[draw] x0 " + x0          + ", y0 " + y0 );
-            my_log.i(DEBUG_TAG, "[draw] x0 " + x0          + ", y0 " + y0 );
+    void setupRecognizingStatus(boolean recognizing) {
+        final Button button_start   = (Button) mLayout.findViewById(R.id.start);
 
-            Log.i(DEBUG_TAG, "[draw] xC " + current_x   + ", yC " + current_y );
-            my_log.i(DEBUG_TAG, "[draw] xC " + current_x   + ", yC " + current_y );
+        if (recognizing) {
+            button_start.setText(R.string.recognizing);
         }
+        else {
+            button_start.setText(R.string.start);
+        }
+    }
 
-        // clear canvasDrawingPane
-        canvasDrawingPane.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-
-        // draw rectangle
-        canvasDrawingPane.drawRoundRect(x0, y0, current_x, current_y, 25, 25, paint);
-        image_view.invalidate();
+    void finishSelection() {
+        // --- deactivate service, once the queued text has been spoken (see onSpeechDone)
+        if (speaker.isSpeaking()) {
+            deactivate_when_spoken = true;
+        }
+        else {
+            setupServiceStatus( false );
+        }
     }
 
-}//class MainService
+    @Override public void onSpeechStarted() {
+        // first audio of the selection
+        if (first_audio_pending_since != 0) {
+            metrics.first_audio_ms.record(System.currentTimeMillis() - first_audio_pending_since);
+            first_audio_pending_since = 0;
+        }
+    }
 
-class MyLog {
-    // log file
-    File log_file;
-    FileWriter log_file_writer;
+    @Override public void onSpeechDone() {
+        my_log.i(DEBUG_TAG, "[onSpeechDone] All queued text has been spoken");
+        my_log.i(DEBUG_TAG, "[onSpeechDone] Speech cache " + speech_cache.getStats());
 
-    // time info
-    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd HH:mm");
+        if (deactivate_when_spoken) {
+            deactivate_when_spoken = false;
+            setupServiceStatus( false );
+        }
+    }
 
-    MyLog(String PATH) {
-        log_file = new File(PATH, dateFormat.format( new Date() ) + "_MyLog.txt");
+    // writes the metrics to the file of this service start, on metrics_thread (and once more in onDestroy)
+    void writeMetrics() {
         try {
-            log_file_writer = new FileWriter(log_file);
+            metrics_file.getParentFile().mkdirs();
+            metrics.write(metrics_file);
         } catch (IOException e) {
-            e.printStackTrace();
+            my_log.e(DEBUG_TAG, "[writeMetrics] Error writing " + metrics_file + ": " + e);
         }
+    }
 
-        if (log_file != null) {
-            i("[MyLog]", "Log file created at path: " + log_file.getAbsolutePath());
+    @Override protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (metrics == null) {
+            writer.println("Not set up");
+            return;
         }
-    }
 
-    void i(String tag, String msg) {
-        try {
-            log_file_writer.append( dateFormat.format( new Date() ) );
-            log_file_writer.append(" I/");
-            log_file_writer.append(tag);
-            log_file_writer.append(": ");
-            log_file_writer.append(msg);
-            log_file_writer.append("\n");
-            log_file_writer.flush();
-            //log_file_writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        metrics.print(writer);
+        writer.println("  OCR cache " + ocr_cache.getStats());
+        writer.println("  bitmap pool " + bitmap_pool.getStats());
+        if (speech_cache != null) writer.println("  speech cache " + speech_cache.getStats());
+        if (args != null && args.length > 0 && args[0].equals("reset")) {
+            metrics.clear();
+            writer.println("Metrics cleared");
         }
     }
 
-    void w(String tag, String msg) {
-        try {
-            log_file_writer.append( dateFormat.format( new Date() ) );
-            log_file_writer.append(" W/");
-            log_file_writer.append(tag);
-            log_file_writer.append(": ");
-            log_file_writer.append(msg);
-            log_file_writer.append("\n");
-            log_file_writer.flush();
-            //log_file_writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    // draws the moves received since the last frame, frame_time being the start of the frame
+    void drawPendingSelection(long frame_time) {
+        if (!draw_pending) return;
+        draw_pending = false;
+
+        long latency = Math.max(0, frame_time - first_pending_move_time);
+        drag_frames++;
+        drag_latency_sum += latency;
+        drag_latency_max = Math.max(drag_latency_max, latency);
+
+        Trace.beginSection(trace_touch_latency ? "drawSelection: input " + latency + " ms ago" : "drawSelection");
+        drawRectangle();
+        Trace.endSection();
     }
 
-    void e(String tag, String msg) {
-        try {
-            log_file_writer.append( dateFormat.format( new Date() ) );
-            log_file_writer.append(" E/");
-            log_file_writer.append(tag);
-            log_file_writer.append(": ");
-            log_file_writer.append(msg);
-            log_file_writer.append("\n");
-            log_file_writer.flush();
-            //log_file_writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    void drawRectangle() {
+        // info
+        if (verbose_ontouch) {
+            my_log.i(DEBUG_TAG, "[draw] x0 " + x0          + ", y0 " + y0 );
+
+            my_log.i(DEBUG_TAG, "[draw] xC " + current_x   + ", yC " + current_y );
         }
+
+        // move the rectangle; the whole overlay is invalidated, hardware accelerated views ignore dirty rects
+        selection_overlay.setSelection(x0, y0, current_x, current_y);
     }
-}//class MyLog
\ No newline at end of file
+
+}//class MainService
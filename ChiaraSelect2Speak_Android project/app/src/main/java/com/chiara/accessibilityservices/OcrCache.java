@@ -0,0 +1,214 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* LRU cache of recognized text, keyed by the content of the cropped selection.
+ * Games show the same menus, dialog boxes and buttons again and again: a selection showing what a
+ * recently recognized one showed is served from the cache, without a new TextRecognizer.detect()
+ * call.
+ *
+ * The key is a perceptual hash of the crop (dHash: is each cell of a HASH_SIZE x HASH_SIZE grid
+ * brighter than its right neighbour?) and its size. Two crops match when their sizes differ by at
+ * most SIZE_TOLERANCE and their hashes by at most MAX_HASH_DISTANCE bits: a hand-drawn rectangle
+ * of the same menu is never the same twice, it is shifted or resized by a few pixels, and the
+ * capture adds noise (a shift of a few pixels changes 10-20 bits, another dialog 60 or more). The
+ * price is that a dialog with a word or two changed also matches, and its previous text is read
+ * again. HASH_MARGIN keeps the flat background from flipping bits with the noise.
+ * The cache is bounded by an estimate of the memory held by the recognized text. */
+class OcrCache {
+    private static final int HASH_SIZE = 16;                    // 16x16 comparisons, 256 bits
+    private static final int HASH_WORDS = HASH_SIZE * HASH_SIZE / 64;
+    private static final int HASH_MARGIN = 2;                   // [luminance levels] min difference of cells for a bit
+    private static final int MAX_HASH_DISTANCE = 20;            // [bits] of 256, for a match
+    private static final int SIZE_TOLERANCE = 16;               // [px] width and height difference, for a match
+    private static final int TEXT_BOX_BYTES = 96;               // estimated size of a TextBox and its index entries, without its string
+
+    static class Key {
+        final long[] hash;
+        final int width, height;
+
+        Key(long[] hash, int width, int height) {
+            this.hash = hash;
+            this.width = width;
+            this.height = height;
+        }
+
+        boolean matches(Key other) {
+            if (Math.abs(width - other.width) > SIZE_TOLERANCE || Math.abs(height - other.height) > SIZE_TOLERANCE) return false;
+
+            int distance = 0;
+            for (int i = 0; i < HASH_WORDS; i++) {
+                distance += Long.bitCount(hash[i] ^ other.hash[i]);
+            }
+            return distance <= MAX_HASH_DISTANCE;
+        }
+    }
+
+    private static class Entry {
+        final TextIndex text;
+        final int bytes;
+        final long recognition_ms; // time it took to recognize text, saved by each hit
+
+        Entry(TextIndex text, int bytes, long recognition_ms) {
+            this.text = text;
+            this.bytes = bytes;
+            this.recognition_ms = recognition_ms;
+        }
+    }
+
+    private final long max_bytes;
+    private long used_bytes = 0;
+
+    // least recently used first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // counters
+    private int hits = 0, misses = 0;
+    private long saved_ms = 0;
+
+    // buffers for hashing, see key()
+    private int[] row_pixels = new int[0];
+    private final long[] cell_sums = new long[(HASH_SIZE + 1) * HASH_SIZE];
+    private final int[] cell_counts = new int[(HASH_SIZE + 1) * HASH_SIZE];
+
+    OcrCache(long max_bytes) {
+        this.max_bytes = max_bytes;
+    }
+
+    /* Computes the key of image. Not thread-safe: call it from a single thread (the OCR thread). */
+    Key key(OcrImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (row_pixels.length < width) row_pixels = new int[width];
+
+        // mean luminance of each cell of a (HASH_SIZE + 1) x HASH_SIZE grid
+        Arrays.fill(cell_sums, 0);
+        Arrays.fill(cell_counts, 0);
+        for (int y = 0; y < height; y++) {
+            image.getRow(y, row_pixels);
+            int row = y * HASH_SIZE / height;
+
+            for (int x = 0; x < width; x++) {
+                int pixel = row_pixels[x];
+                int luminance = (((pixel >> 16) & 0xff) * 77 + ((pixel >> 8) & 0xff) * 150 + (pixel & 0xff) * 29) >> 8;
+
+                int cell = row * (HASH_SIZE + 1) + x * (HASH_SIZE + 1) / width;
+                cell_sums[cell] += luminance;
+                cell_counts[cell]++;
+            }
+        }
+
+        // one bit per pair of horizontally adjacent cells: is the left one brighter? Cells of the same
+        // colour (the background) must not flip with the capture noise, hence HASH_MARGIN
+        long[] hash = new long[HASH_WORDS];
+        for (int row = 0; row < HASH_SIZE; row++) {
+            for (int column = 0; column < HASH_SIZE; column++) {
+                int cell = row * (HASH_SIZE + 1) + column;
+                // compare sums scaled by the other cell's count, cells may hold different numbers of pixels
+                long left_count = Math.max(1, cell_counts[cell]), right_count = Math.max(1, cell_counts[cell + 1]);
+                long left = cell_sums[cell] * right_count;
+                long right = (cell_sums[cell + 1] + HASH_MARGIN * right_count) * left_count;
+
+                if (left > right) {
+                    int bit = row * HASH_SIZE + column;
+                    hash[bit >> 6] |= 1L << (bit & 63);
+                }
+            }
+        }
+
+        return new Key(hash, width, height);
+    }
+
+    /* Returns the text recognized on a crop matching key, or null. */
+    synchronized TextIndex get(Key key) {
+        Key match = find(key);
+        if (match == null) {
+            misses++;
+            return null;
+        }
+
+        Entry entry = entries.get(match); // marks it as recently used
+        hits++;
+        saved_ms += entry.recognition_ms;
+        return entry.text;
+    }
+
+    /* Stores the text recognized on the crop with the given key, in recognition_ms. It replaces
+     * the text of a matching crop. */
+    synchronized void put(Key key, TextIndex text, long recognition_ms) {
+        int bytes = estimateBytes(text);
+        if (bytes > max_bytes) return;
+
+        Key match = find(key);
+        if (match != null) used_bytes -= entries.remove(match).bytes;
+        entries.put(key, new Entry(text, bytes, recognition_ms));
+        used_bytes += bytes;
+
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (used_bytes > max_bytes && iterator.hasNext()) {
+            used_bytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        used_bytes = 0;
+    }
+
+    /****************************************** Stats *********************************************/
+    synchronized int getHits() {
+        return hits;
+    }
+
+    synchronized int getMisses() {
+        return misses;
+    }
+
+    synchronized float getHitRate() {
+        return (hits + misses) > 0 ? (float) hits / (hits + misses) : 0;
+    }
+
+    synchronized String getStats() {
+        return hits + " hits, " + misses + " misses (" + Math.round(100 * getHitRate()) + "%)"
+                + ", ~" + saved_ms + " ms saved"
+                + " - " + entries.size() + " entries, " + (used_bytes / 1024) + "/" + (max_bytes / 1024) + " KB";
+    }
+
+    /****************************************** Private *******************************************/
+    // the most recently used key matching key, or null; the cache holds a few dozen entries
+    private Key find(Key key) {
+        Key match = null;
+        for (Key candidate : entries.keySet()) {
+            if (candidate.matches(key)) match = candidate;
+        }
+        return match;
+    }
+
+    private static int estimateBytes(TextIndex text) {
+        int bytes = 0;
+        for (int level = TextBox.BLOCK; level <= TextBox.ELEMENT; level++) {
+            for (TextBox box : text.getBoxes(level)) {
+                bytes += TEXT_BOX_BYTES + 2 * box.text.length();
+            }
+        }
+        return bytes;
+    }
+}
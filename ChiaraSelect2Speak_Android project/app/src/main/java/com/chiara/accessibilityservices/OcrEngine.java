@@ -0,0 +1,40 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.util.List;
+
+/* A text recognizer: VisionOcrEngine (Google Play Services) on the device, FakeOcrEngine (in the
+ * unit test sources) to test and benchmark the pipeline on a plain JVM. The result is a TextIndex of blocks, lines and
+ * elements with their bounding boxes, in image coordinates.
+ * Engines are called from a single thread (the OCR thread), and may block. */
+interface OcrEngine {
+    interface LinesListener {
+        // called on the engine's thread with the next lines in reading order, as soon as no text
+        // before them can still be recognized
+        void onLinesReady(List<TextBox> lines);
+    }
+
+    TextIndex recognize(OcrImage image);
+
+    /* Same as recognize(), but the lines are also given to listener as soon as they are final:
+     * engines that recognize the image in parts give the first lines before the last part is
+     * done. All lines are given before returning. */
+    TextIndex recognize(OcrImage image, LinesListener listener);
+
+    String getName();
+
+    void release();
+}
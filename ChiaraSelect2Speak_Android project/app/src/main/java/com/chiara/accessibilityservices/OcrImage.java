@@ -0,0 +1,27 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+/* Pixels given to an OcrEngine, one row at a time, as ARGB ints.
+ * Plain Java, so that engines and the pipeline around them can run off Android, see
+ * OcrPipelineBenchmark. */
+interface OcrImage {
+    int getWidth();
+
+    int getHeight();
+
+    /* Copies the width pixels of row y into row, from index 0. */
+    void getRow(int y, int[] row);
+}
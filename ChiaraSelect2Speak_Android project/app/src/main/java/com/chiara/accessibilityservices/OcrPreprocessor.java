@@ -0,0 +1,164 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+import java.util.List;
+
+/* Prepares bitmaps for text recognition:
+ * - converts them to luminance, game text is read from its shape, not from its colours
+ * - stretches the contrast between the darkest and the brightest pixels, so that text on colourful
+ *   or washed-out backgrounds stands out
+ * - downscales them so that text is about target_text_height pixels high: fewer pixels are faster
+ *   to recognize, and the recognizer does not need large text to read it.
+ * The text height is not known before recognition: it is taken from the lines recognized on the
+ * previous bitmaps of the same kind (games keep their fonts), see updateTextHeight(). Whole
+ * screenshots and selections keep separate estimates: the text of a whole screen is not the text
+ * the user selects. A bitmap on which nothing was recognized resets the estimate, so that the next
+ * one is not downscaled on a stale guess. Bitmaps are never upscaled.
+ *
+ * Not thread-safe: the buffers are reused, call it from a single thread (the OCR thread). */
+class OcrPreprocessor {
+    static final int NO_DOWNSCALE = 0;
+
+    // kinds of bitmaps, each with its own text height estimate
+    static final int SCREEN = 0;
+    static final int SELECTION = 1;
+    private static final int KINDS = 2;
+
+    private static final float CONTRAST_CLIP = 0.01f;  // fraction of the darkest and brightest pixels saturated by the stretch
+    private static final int MIN_CONTRAST = 16;        // ranges of luminance narrower than this are not stretched
+    private static final int MIN_SIZE = 32;            // [px] bitmaps are not downscaled below this size
+
+    private final BitmapPool bitmap_pool;
+    private final boolean normalize_contrast;
+    private final int target_text_height;               // [px], or NO_DOWNSCALE
+
+    private final int[] text_heights = new int[KINDS];  // [px] median height of the lines recognized last, per kind, 0 if unknown
+
+    // buffers
+    private int[] row = new int[0];
+    private int[] sums = new int[0];
+    private int[] counts = new int[0];
+    private final int[] histogram = new int[256];
+
+    OcrPreprocessor(BitmapPool bitmap_pool, boolean normalize_contrast, int target_text_height) {
+        this.bitmap_pool = bitmap_pool;
+        this.normalize_contrast = normalize_contrast;
+        this.target_text_height = target_text_height;
+    }
+
+    /* Returns the scale to apply to a width x height bitmap of the given kind, 1 if it is not
+     * downscaled. */
+    float getScale(int kind, int width, int height) {
+        int text_height = text_heights[kind];
+        if (target_text_height == NO_DOWNSCALE || text_height <= target_text_height) return 1;
+
+        float scale = (float) target_text_height / text_height;
+        scale = Math.max(scale, (float) MIN_SIZE / Math.min(width, height));
+        return Math.min(1, scale);
+    }
+
+    /* Remembers the height of the text recognized on the last bitmap of the given kind, in
+     * original pixels; no text resets it. */
+    void updateTextHeight(int kind, TextIndex text) {
+        text_heights[kind] = medianLineHeight(text.getBoxes(TextBox.LINE));
+    }
+
+    void setTextHeight(int kind, int text_height) {
+        text_heights[kind] = text_height;
+    }
+
+    /* Returns a grayscale copy of source, contrast-stretched and scaled, taken from the pool.
+     * The source bitmap is not released. */
+    Bitmap process(Bitmap source, float scale) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int out_width = Math.max(1, Math.round(width * scale));
+        int out_height = Math.max(1, Math.round(height * scale));
+        int out_size = out_width * out_height;
+
+        if (row.length < Math.max(width, out_width)) row = new int[Math.max(width, out_width)];
+        if (sums.length < out_size) {
+            sums = new int[out_size];
+            counts = new int[out_size];
+        }
+        Arrays.fill(sums, 0, out_size, 0);
+        Arrays.fill(counts, 0, out_size, 0);
+
+        // luminance, averaged over the source pixels of each output pixel
+        for (int y = 0; y < height; y++) {
+            source.getPixels(row, 0, width, 0, y, width, 1);
+            int out_row = (int) ((long) y * out_height / height) * out_width;
+
+            for (int x = 0; x < width; x++) {
+                int pixel = row[x];
+                int i = out_row + (int) ((long) x * out_width / width);
+                sums[i] += (((pixel >> 16) & 0xff) * 77 + ((pixel >> 8) & 0xff) * 150 + (pixel & 0xff) * 29) >> 8;
+                counts[i]++;
+            }
+        }
+        for (int i = 0; i < out_size; i++) {
+            sums[i] = counts[i] > 0 ? sums[i] / counts[i] : 0;
+        }
+
+        if (normalize_contrast) {
+            stretchContrast(sums, out_size);
+        }
+
+        // write the gray pixels
+        Bitmap result = bitmap_pool.acquireBitmap(out_width, out_height);
+        for (int y = 0; y < out_height; y++) {
+            for (int x = 0; x < out_width; x++) {
+                int luminance = sums[y * out_width + x];
+                row[x] = 0xff000000 | (luminance << 16) | (luminance << 8) | luminance;
+            }
+            result.setPixels(row, 0, out_width, 0, y, out_width, 1);
+        }
+
+        return result;
+    }
+
+    /* Maps the luminance range [low, high] to [0, 255], low and high being the CONTRAST_CLIP
+     * percentiles of the histogram. */
+    private void stretchContrast(int[] luminance, int size) {
+        Arrays.fill(histogram, 0);
+        for (int i = 0; i < size; i++) histogram[luminance[i]]++;
+
+        int clip = (int) (size * CONTRAST_CLIP);
+        int low = 0, high = 255;
+        for (int count = 0; low < 255 && (count += histogram[low]) <= clip; ) low++;
+        for (int count = 0; high > 0 && (count += histogram[high]) <= clip; ) high--;
+        if (high - low < MIN_CONTRAST) return;
+
+        for (int i = 0; i < size; i++) {
+            int value = (luminance[i] - low) * 255 / (high - low);
+            luminance[i] = Math.max(0, Math.min(255, value));
+        }
+    }
+
+    static int medianLineHeight(List<TextBox> lines) {
+        if (lines.isEmpty()) return 0;
+
+        int[] heights = new int[lines.size()];
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = lines.get(i).bottom - lines.get(i).top;
+        }
+        Arrays.sort(heights);
+        return heights[heights.length / 2];
+    }
+}
@@ -0,0 +1,356 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/* Runs text recognition on a dedicated background thread, so that the overlay and the touch
+ * handling never wait for the OcrEngine.
+ * Selections wait in a bounded queue: when it is full, the oldest waiting selection is dropped in
+ * favour of the newest one. A whole screenshot waits in a slot of its own, and is recognized first:
+ * selections never drop it (they may be waiting for its text), only a newer screenshot does.
+ * Results are delivered on the main thread.
+ * Selections can be cancelled (see cancelSelections()): waiting ones are dropped, the running one
+ * is interrupted, and nothing more is delivered for them. */
+class OcrWorker {
+    private static final String DEBUG_TAG = "[Chiara_OcrWorker]";
+
+    private static final int MAX_PENDING_REQUESTS = 2;
+
+    interface Callback {
+        // called on the main thread with the next lines of text in reading order, as soon as they
+        // are recognized, before onTextRecognized()
+        void onTextLinesReady(List<TextBox> lines);
+
+        // called on the main thread with all the recognized text (possibly empty), once every line
+        // has been given to onTextLinesReady()
+        void onTextRecognized(TextIndex text);
+
+        // called on the main thread when the request has been dropped before being recognized, or
+        // when its recognition failed
+        void onRecognitionDropped();
+    }
+
+    interface IndexCallback {
+        // called on the main thread with the index of the text recognized on the whole bitmap
+        void onTextIndexed(TextIndex index);
+
+        // called on the main thread when the request has been dropped before being recognized, or
+        // when its recognition failed
+        void onIndexingDropped();
+    }
+
+    private static class Request {
+        Bitmap bitmap;                      // the selection, or the copy of frame made by the worker
+        final ScreenFrame frame;            // whole screenshot, copied on the worker thread
+        final Callback callback;            // either callback
+        final IndexCallback index_callback; // or index_callback is set
+        boolean cancelled = false;          // guarded by OcrWorker.this, read on the main thread
+
+        Request(Bitmap bitmap, ScreenFrame frame, Callback callback, IndexCallback index_callback) {
+            this.bitmap = bitmap;
+            this.frame = frame;
+            this.callback = callback;
+            this.index_callback = index_callback;
+        }
+    }
+
+    private final OcrEngine ocr_engine;
+    private final BitmapPool bitmap_pool;
+    private final OcrCache ocr_cache; // text of recently recognized selections, may be null
+    private final PipelineMetrics metrics; // records the recognition times, may be null
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler main_handler = new Handler(Looper.getMainLooper());
+
+    // waiting requests, guarded by this
+    private final ArrayDeque<Request> pending = new ArrayDeque<>();    // selections
+    private Request pending_index;                                      // whole screenshot
+    private Request running;
+
+    private final Runnable process_next = new Runnable() {
+        @Override
+        public void run() {
+            processNext();
+        }
+    };
+
+    OcrWorker(OcrEngine ocr_engine, BitmapPool bitmap_pool, OcrCache ocr_cache, PipelineMetrics metrics) {
+        this.ocr_engine = ocr_engine;
+        this.bitmap_pool = bitmap_pool;
+        this.ocr_cache = ocr_cache;
+        this.metrics = metrics;
+
+        thread = new HandlerThread("OcrThread", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /* Queues bitmap for recognition. The worker takes ownership of the bitmap, and gives it back
+     * to the pool once recognized. A bitmap that looks like a recently recognized one is served
+     * from ocr_cache. */
+    void submit(Bitmap bitmap, Callback callback) {
+        enqueue(new Request(bitmap, null, callback, null));
+    }
+
+    /* Same as submit(), for a whole screenshot: the frame is copied on the worker thread (a full
+     * screen copy takes too long for the main thread), and dropped if it has been closed by then.
+     * The result is not cached. */
+    void submitForIndex(ScreenFrame frame, IndexCallback callback) {
+        enqueue(new Request(null, frame, null, callback));
+    }
+
+    private void enqueue(Request request) {
+        Request dropped = null;
+
+        synchronized (this) {
+            if (request.callback == null) {
+                dropped = pending_index;
+                pending_index = request;
+            }
+            else {
+                if (pending.size() >= MAX_PENDING_REQUESTS) {
+                    dropped = pending.poll();
+                }
+                pending.add(request);
+            }
+        }
+
+        if (dropped != null) {
+            Log.w(DEBUG_TAG, "[enqueue] Queue full, dropping oldest request of its kind");
+            bitmap_pool.releaseBitmap(dropped.bitmap);
+            dispatchDropped(dropped);
+        }
+
+        handler.post(process_next);
+    }
+
+    /* Cancels the selections submitted so far: none of their callbacks is called anymore. Called on
+     * the main thread. Whole screenshots being indexed are not cancelled. */
+    void cancelSelections() {
+        ArrayList<Request> dropped = new ArrayList<>();
+
+        synchronized (this) {
+            Iterator<Request> requests = pending.iterator();
+            while (requests.hasNext()) {
+                Request request = requests.next();
+                request.cancelled = true;
+                requests.remove();
+                dropped.add(request);
+            }
+
+            // stop the recognition early, the tiles not started yet are skipped
+            if (running != null && running.callback != null) {
+                running.cancelled = true;
+                thread.interrupt();
+            }
+        }
+
+        for (Request request : dropped) {
+            bitmap_pool.releaseBitmap(request.bitmap);
+        }
+    }
+
+    /* Drops the waiting requests, interrupts the running one and waits for the worker thread to
+     * end, then releases the engine. Called on the main thread. */
+    void release() {
+        synchronized (this) {
+            for (Request request : pending) {
+                bitmap_pool.releaseBitmap(request.bitmap);
+            }
+            pending.clear();
+            if (pending_index != null) {
+                bitmap_pool.releaseBitmap(pending_index.bitmap);
+                pending_index = null;
+            }
+
+            if (running != null) {
+                running.cancelled = true;
+                thread.interrupt();
+            }
+        }
+
+        thread.quitSafely();
+
+        // the engine may still be recognizing: it stops at the next tile
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        ocr_engine.release();
+    }
+
+    // called on the worker thread
+    private void processNext() {
+        final Request request;
+        synchronized (this) {
+            if (pending_index != null) {
+                request = pending_index;
+                pending_index = null;
+            }
+            else {
+                request = pending.poll();
+            }
+            running = request;
+        }
+        if (request == null) return; // already served, or dropped
+
+        if (request.frame != null) {
+            request.bitmap = request.frame.copyRegion(0, 0, request.frame.getWidth(), request.frame.getHeight());
+            if (request.bitmap == null) {
+                Log.w(DEBUG_TAG, "[processNext] Screenshot closed before being recognized");
+                synchronized (this) {
+                    running = null;
+                }
+                dispatchDropped(request);
+                return;
+            }
+        }
+
+        TextIndex text = null;
+        boolean failed = false;
+        final Callback callback = request.callback;
+        long trace_start = PipelineTrace.begin();
+        try {
+            OcrImage image = new BitmapImage(request.bitmap);
+
+            // selections only, a whole screenshot is recognized once anyway
+            OcrCache.Key key = null;
+            if (ocr_cache != null && callback != null) {
+                key = ocr_cache.key(image);
+                text = ocr_cache.get(key);
+                if (text != null) {
+                    PipelineTrace.instant("ocr cache hit");
+                    dispatchLines(request, text.getLinesInReadingOrder());
+                }
+            }
+
+            if (text == null) {
+                long start_time = System.currentTimeMillis();
+                if (callback != null) {
+                    // selections are spoken while they are being recognized
+                    text = ocr_engine.recognize(image, new OcrEngine.LinesListener() {
+                        @Override
+                        public void onLinesReady(List<TextBox> lines) {
+                            dispatchLines(request, lines);
+                        }
+                    });
+                }
+                else {
+                    text = ocr_engine.recognize(image);
+                }
+
+                // the text (and time) of an interrupted recognition is not complete
+                long elapsed = System.currentTimeMillis() - start_time;
+                if (!isCancelled(request)) {
+                    if (key != null) ocr_cache.put(key, text, elapsed);
+                    if (metrics != null) metrics.recordOcr(elapsed, request.bitmap.getWidth(), request.bitmap.getHeight());
+                }
+            }
+        } catch (RuntimeException e) {
+            // e.g. an error inside Play Services: the request is dropped, the worker goes on
+            Log.e(DEBUG_TAG, "[processNext] Recognition failed", e);
+            failed = true;
+        } finally {
+            bitmap_pool.releaseBitmap(request.bitmap);
+
+            synchronized (this) {
+                running = null;
+                Thread.interrupted(); // clear an interrupt that came too late
+            }
+        }
+
+        PipelineTrace.end(callback != null ? "ocr selection" : "ocr screenshot", trace_start);
+        if (isCancelled(request)) return;
+
+        if (failed) {
+            dispatchDropped(request);
+        }
+        else if (request.callback != null) {
+            dispatchResult(request, text);
+        }
+        else {
+            dispatchIndex(request.index_callback, text);
+        }
+    }
+
+    private synchronized boolean isCancelled(Request request) {
+        return request.cancelled;
+    }
+
+    // lines and results already posted when the request is cancelled are not delivered
+    private void dispatchLines(final Request request, final List<TextBox> lines) {
+        if (lines.isEmpty()) return;
+
+        main_handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCancelled(request)) request.callback.onTextLinesReady(lines);
+            }
+        });
+    }
+
+    private void dispatchResult(final Request request, final TextIndex text) {
+        main_handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCancelled(request)) request.callback.onTextRecognized(text);
+            }
+        });
+    }
+
+    private void dispatchIndex(final IndexCallback callback, final TextIndex index) {
+        main_handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onTextIndexed(index);
+            }
+        });
+    }
+
+    private void dispatchDropped(final Request request) {
+        main_handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isCancelled(request)) return;
+
+                if (request.callback != null) {
+                    request.callback.onRecognitionDropped();
+                }
+                else {
+                    request.index_callback.onIndexingDropped();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,201 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/* Counters and histograms of the select-to-speech pipeline, since the service was started:
+ * screenshot latency, OCR time per megapixel, time from the selection to its first audio, blocks
+ * spoken per selection, and how often the screenshot or the text are missing.
+ * Recording is cheap and allocation-free, from any thread. The metrics are printed by
+ * MainService.dump() and written periodically to a compact text file (see write()), to compare
+ * devices in the field. */
+class PipelineMetrics {
+    /* Histogram of non-negative values, with 4 buckets per power of two (a value is known within
+     * 25%), from 0 to 2^31. */
+    static class Histogram {
+        private static final int SUB_BUCKETS = 4;
+        private static final int BUCKETS = SUB_BUCKETS * 30;
+
+        final String name;
+        final String unit;
+
+        // guarded by this
+        private final int[] counts = new int[BUCKETS];
+        private long count = 0;
+        private long sum = 0;
+        private long max = 0;
+
+        Histogram(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        synchronized void record(long value) {
+            value = Math.max(0, Math.min(Integer.MAX_VALUE, value));
+            counts[bucketOf(value)]++;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        /* Returns the upper bound of the bucket holding the fraction p of the values, 0 if empty. */
+        synchronized long getPercentile(float p) {
+            if (count == 0) return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(p * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(max, lowerBound(i + 1) - 1);
+            }
+            return max;
+        }
+
+        synchronized String getStats() {
+            if (count == 0) return "no samples";
+
+            return "count " + count + ", mean " + (sum / count)
+                    + ", p50 " + getPercentile(0.5f) + ", p90 " + getPercentile(0.9f)
+                    + ", p99 " + getPercentile(0.99f) + ", max " + max;
+        }
+
+        // name count sum max, then bucket:count for the non-empty buckets
+        synchronized void write(Writer writer) throws IOException {
+            writer.write(name + " " + count + " " + sum + " " + max);
+            for (int i = 0; i < BUCKETS; i++) {
+                if (counts[i] > 0) writer.write(" " + i + ":" + counts[i]);
+            }
+            writer.write("\n");
+        }
+
+        synchronized void clear() {
+            Arrays.fill(counts, 0);
+            count = sum = max = 0;
+        }
+
+        // values below SUB_BUCKETS have a bucket each, then each power of two is split in SUB_BUCKETS
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub_bucket = (int) (value >> (exponent - 2)) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS * (exponent - 1) + sub_bucket;
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+
+            int exponent = bucket / SUB_BUCKETS + 1;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 2);
+        }
+    }
+
+    static class Counter {
+        final String name;
+        private long value = 0;     // guarded by this
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        synchronized void increment() {
+            value++;
+        }
+
+        synchronized long get() {
+            return value;
+        }
+
+        synchronized void clear() {
+            value = 0;
+        }
+    }
+
+    final Histogram screenshot_ms = new Histogram("screenshot_ms", "ms");
+    final Histogram ocr_ms_per_megapixel = new Histogram("ocr_ms_per_megapixel", "ms/Mpx");
+    final Histogram first_audio_ms = new Histogram("first_audio_ms", "ms");
+    final Histogram blocks_per_selection = new Histogram("blocks_per_selection", "blocks");
+    private final Histogram[] histograms = { screenshot_ms, ocr_ms_per_megapixel, first_audio_ms, blocks_per_selection };
+
+    final Counter screenshots = new Counter("screenshots");
+    final Counter screenshots_failed = new Counter("screenshots_failed");     // "No screenshot"
+    final Counter selections_read = new Counter("selections_read");
+    final Counter selections_empty = new Counter("selections_empty");         // "Nessun testo trovato"
+    private final Counter[] counters = { screenshots, screenshots_failed, selections_read, selections_empty };
+
+    private final String device;
+    private volatile long start_time = System.currentTimeMillis();
+
+    PipelineMetrics(String device) {
+        this.device = device;
+    }
+
+    /* Records the time of an OCR of width x height pixels, in ms per megapixel. */
+    void recordOcr(long elapsed_ms, int width, int height) {
+        long pixels = (long) width * height;
+        if (pixels > 0) ocr_ms_per_megapixel.record(elapsed_ms * 1000000 / pixels);
+    }
+
+    void print(PrintWriter writer) {
+        writer.println("Pipeline metrics of " + device + ", since " + formatTime(start_time) + ":");
+        writer.println("  screenshots " + screenshots.get() + ", no screenshot " + screenshots_failed.get()
+                + " (" + percentage(screenshots_failed.get(), screenshots.get()) + "%)");
+        writer.println("  selections read " + selections_read.get() + ", no text found " + selections_empty.get()
+                + " (" + percentage(selections_empty.get(), selections_read.get()) + "%)");
+        for (Histogram histogram : histograms) {
+            writer.println("  " + histogram.name + " [" + histogram.unit + "]: " + histogram.getStats());
+        }
+    }
+
+    /* Writes the metrics to file, replacing its content: a header line (device, start time), a
+     * line per counter (name value) and a line per histogram (see Histogram.write()). */
+    void write(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("device " + device.replace(' ', '_') + " start " + start_time + " now " + System.currentTimeMillis() + "\n");
+            for (Counter counter : counters) {
+                writer.write(counter.name + " " + counter.get() + "\n");
+            }
+            for (Histogram histogram : histograms) {
+                histogram.write(writer);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    void clear() {
+        for (Counter counter : counters) counter.clear();
+        for (Histogram histogram : histograms) histogram.clear();
+        start_time = System.currentTimeMillis();
+    }
+
+    private static long percentage(long part, long total) {
+        return total > 0 ? Math.round(100.0 * part / total) : 0;
+    }
+
+    private static String formatTime(long time) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date(time));
+    }
+}
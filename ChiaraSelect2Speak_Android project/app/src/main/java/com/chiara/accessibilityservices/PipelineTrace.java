@@ -0,0 +1,190 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/* Traces the select-to-speech pipeline of sampled selections, and writes each trace as a
+ * Chrome/Perfetto trace JSON file (open it in ui.perfetto.dev or chrome://tracing) in a directory.
+ * Like android.os.Trace, it is called statically from any thread and stage:
+ *   long start = PipelineTrace.begin();  ...  PipelineTrace.end("stage", start);
+ * spans on one thread, and asyncBegin()/asyncEnd() for spans from one thread to another (e.g.
+ * capture requested on the main thread, delivered later).
+ * One selection every sample_every is traced, from start() to finish() (called when its first
+ * audio starts, see Speaker); when no selection is being traced, every call returns at once. Traces are written off the calling thread. */
+class PipelineTrace {
+    private static final int MAX_EVENTS = 20000; // events of a trace, the next ones are dropped
+
+    private static class Event {
+        final char phase;       // 'X' complete, 'b'/'e' async begin/end, 'i' instant
+        final String name;
+        final long id;          // async events
+        final long start_ns, duration_ns;
+        final long thread_id;
+
+        Event(char phase, String name, long id, long start_ns, long duration_ns) {
+            this.phase = phase;
+            this.name = name;
+            this.id = id;
+            this.start_ns = start_ns;
+            this.duration_ns = duration_ns;
+            this.thread_id = Thread.currentThread().getId();
+        }
+    }
+
+    private static File directory;
+    private static int sample_every = 0;        // 0 to disable tracing
+    private static int selections = 0;
+
+    private static volatile boolean tracing = false;
+    // trace being recorded, guarded by PipelineTrace.class
+    private static int trace_id;
+    private static long trace_start_ns;
+    private static ArrayList<Event> events = new ArrayList<>();
+    private static final HashMap<Long, String> thread_names = new HashMap<>();
+
+    /* Traces one selection every sample_every (0 to disable) into directory. */
+    static synchronized void setup(File directory, int sample_every) {
+        PipelineTrace.directory = directory;
+        PipelineTrace.sample_every = sample_every;
+        if (sample_every > 0) directory.mkdirs();
+    }
+
+    /* Starts tracing the selection id, if it is sampled. A trace still being recorded is written. */
+    static synchronized void start(int id) {
+        if (tracing) finish();
+        if (sample_every <= 0 || (selections++ % sample_every) != 0) return;
+
+        trace_id = id;
+        trace_start_ns = System.nanoTime();
+        events = new ArrayList<>();
+        thread_names.clear();
+        tracing = true;
+    }
+
+    /* Stops the trace being recorded, if any, and writes it. */
+    static synchronized void finish() {
+        if (!tracing) return;
+        tracing = false;
+
+        final File file = new File(directory, "trace_" + trace_id + "_" + System.currentTimeMillis() + ".json");
+        final ArrayList<Event> trace_events = events;
+        final HashMap<Long, String> trace_threads = new HashMap<>(thread_names);
+        final long start_ns = trace_start_ns;
+        events = new ArrayList<>();
+
+        new Thread("PipelineTraceWriter") {
+            @Override
+            public void run() {
+                try {
+                    write(file, trace_events, trace_threads, start_ns);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }.start();
+    }
+
+    static boolean isTracing() {
+        return tracing;
+    }
+
+    /* Returns the start time of a span, to give to end(); 0 when not tracing. */
+    static long begin() {
+        return tracing ? System.nanoTime() : 0;
+    }
+
+    /* Records the span name on the current thread, from start (returned by begin()) to now. */
+    static void end(String name, long start) {
+        if (!tracing || start == 0) return;
+        add(new Event('X', name, 0, start, System.nanoTime() - start));
+    }
+
+    static void instant(String name) {
+        if (!tracing) return;
+        add(new Event('i', name, 0, System.nanoTime(), 0));
+    }
+
+    /* Starts the span name with the given id, that can end on another thread. */
+    static void asyncBegin(String name, long id) {
+        if (!tracing) return;
+        add(new Event('b', name, id, System.nanoTime(), 0));
+    }
+
+    static void asyncEnd(String name, long id) {
+        if (!tracing) return;
+        add(new Event('e', name, id, System.nanoTime(), 0));
+    }
+
+    private static synchronized void add(Event event) {
+        if (!tracing || events.size() >= MAX_EVENTS) return;
+        if (event.start_ns < trace_start_ns) return; // begun before the trace started
+
+        events.add(event);
+        if (!thread_names.containsKey(event.thread_id)) {
+            thread_names.put(event.thread_id, Thread.currentThread().getName());
+        }
+    }
+
+    /****************************************** JSON **********************************************/
+    private static void write(File file, ArrayList<Event> events, HashMap<Long, String> threads, long start_ns) throws IOException {
+        try (Writer out = new FileWriter(file)) {
+            out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+
+            boolean first = true;
+            for (Long thread_id : threads.keySet()) {
+                if (!first) out.write(",\n");
+                first = false;
+                out.write("{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":1,\"tid\":" + thread_id
+                        + ",\"args\":{\"name\":" + quote(threads.get(thread_id)) + "}}");
+            }
+
+            for (Event event : events) {
+                if (!first) out.write(",\n");
+                first = false;
+
+                out.write("{\"ph\":\"" + event.phase + "\",\"name\":" + quote(event.name) + ",\"cat\":\"pipeline\""
+                        + ",\"pid\":1,\"tid\":" + event.thread_id + ",\"ts\":" + micros(event.start_ns - start_ns));
+                if (event.phase == 'X') out.write(",\"dur\":" + micros(event.duration_ns));
+                if (event.phase == 'b' || event.phase == 'e') out.write(",\"id\":" + event.id);
+                if (event.phase == 'i') out.write(",\"s\":\"t\"");
+                out.write("}");
+            }
+
+            out.write("\n]}\n");
+        }
+    }
+
+    private static String micros(long ns) {
+        return String.valueOf(ns / 1000) + "." + String.format(Locale.ROOT, "%03d", ns % 1000);
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') quoted.append('\\').append(c);
+            else if (c < 0x20) quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/* Logger writing to logcat and to a LogStore, without file I/O on the calling thread: each call
+ * stores a record (time, level, tag, message) in a preallocated ring buffer, and a background
+ * thread drains the buffer to the store in batches, at most every FLUSH_INTERVAL ms or as soon as
+ * it is half full. The store keeps segments of at most max_bytes / SEGMENTS bytes, or
+ * MAX_SEGMENT_AGE old, within max_bytes. Logging a record allocates nothing besides the message
+ * the caller has built. Records below the level are dropped before being stored. When the buffer
+ * is full, the policy decides whether the oldest records are overwritten (OVERFLOW_DROP_OLDEST) or
+ * the new ones discarded (OVERFLOW_DROP_NEWEST); the number of records lost is written to the store.
+ * Thread-safe. */
+class RingLog {
+    static final int OVERFLOW_DROP_OLDEST = 0;
+    static final int OVERFLOW_DROP_NEWEST = 1;
+
+    private static final String DEBUG_TAG = "[Chiara_RingLog]";
+    private static final long FLUSH_INTERVAL = 1000; // [ms]
+    private static final int SEGMENTS = 8;
+    private static final long MAX_SEGMENT_AGE = 60 * 60 * 1000; // [ms]
+
+    private final int overflow_policy;
+    private volatile int level = Log.INFO;              // records below it are dropped
+    private volatile boolean logcat = true;             // also write the records to logcat
+
+    // ring buffer, guarded by this
+    private final long[] times;
+    private final int[] levels;
+    private final String[] tags;
+    private final String[] messages;
+    private int head = 0, size = 0;
+    private int dropped = 0;
+    private boolean closed = false;
+
+    // drained records, on the writer thread
+    private final long[] batch_times;
+    private final int[] batch_levels;
+    private final String[] batch_tags;
+    private final String[] batch_messages;
+
+    private final File directory;
+    private final long max_bytes;
+    private final Thread writer_thread;
+
+    RingLog(File directory, long max_bytes, int capacity, int overflow_policy) {
+        this.directory = directory;
+        this.max_bytes = max_bytes;
+        this.overflow_policy = overflow_policy;
+
+        times = new long[capacity];
+        levels = new int[capacity];
+        tags = new String[capacity];
+        messages = new String[capacity];
+        batch_times = new long[capacity];
+        batch_levels = new int[capacity];
+        batch_tags = new String[capacity];
+        batch_messages = new String[capacity];
+
+        writer_thread = new Thread("RingLogThread") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        writer_thread.setPriority(Thread.MIN_PRIORITY);
+        writer_thread.start();
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    void setLevel(int level) {
+        this.level = level;
+    }
+
+    void setLogcat(boolean logcat) {
+        this.logcat = logcat;
+    }
+
+    /* Returns true if records of level are logged: check it before building expensive messages. */
+    boolean isLoggable(int level) {
+        return level >= this.level;
+    }
+
+    void d(String tag, String msg) {
+        log(Log.DEBUG, tag, msg);
+    }
+
+    void i(String tag, String msg) {
+        log(Log.INFO, tag, msg);
+    }
+
+    void w(String tag, String msg) {
+        log(Log.WARN, tag, msg);
+    }
+
+    void e(String tag, String msg) {
+        log(Log.ERROR, tag, msg);
+    }
+
+    void log(int level, String tag, String msg) {
+        if (level < this.level) return;
+        if (logcat) Log.println(level, tag, msg);
+
+        long time = System.nanoTime();
+
+        synchronized (this) {
+            if (closed) return;
+
+            int capacity = times.length;
+            if (size == capacity) {
+                dropped++;
+                if (overflow_policy == OVERFLOW_DROP_NEWEST) return;
+
+                // overwrite the oldest record
+                head = (head + 1) % capacity;
+                size--;
+            }
+
+            int i = (head + size) % capacity;
+            times[i] = time;
+            levels[i] = level;
+            tags[i] = tag;
+            messages[i] = msg;
+            size++;
+
+            if (size == capacity / 2) notify();
+        }
+    }
+
+    /* Writes the records logged so far, and stops the writer thread. Records logged later are
+     * dropped. */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notify();
+        }
+
+        try {
+            writer_thread.join(FLUSH_INTERVAL);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /****************************************** Writer thread *************************************/
+    private void writeLoop() {
+        // opened here, the segments are listed off the calling thread
+        LogStore store = null;
+        try {
+            store = new LogStore(directory, max_bytes / SEGMENTS, MAX_SEGMENT_AGE, max_bytes);
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "[writeLoop] Cannot open " + directory + ": " + e);
+        }
+
+        boolean running = true;
+        while (running) {
+            int count, lost;
+
+            // wait for records, and take them all
+            synchronized (this) {
+                if (!closed && size < times.length / 2) {
+                    try {
+                        wait(FLUSH_INTERVAL);
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                running = !closed;
+
+                count = size;
+                for (int n = 0; n < count; n++) {
+                    int i = (head + n) % times.length;
+                    batch_times[n] = times[i];
+                    batch_levels[n] = levels[i];
+                    batch_tags[n] = tags[i];
+                    batch_messages[n] = messages[i];
+                    tags[i] = null;
+                    messages[i] = null;
+                }
+                head = 0;
+                size = 0;
+                lost = dropped;
+                dropped = 0;
+            }
+
+            if (store == null || (count == 0 && lost == 0)) continue;
+
+            try {
+                if (lost > 0) {
+                    store.append(System.nanoTime(), Log.WARN, DEBUG_TAG, lost + " log records lost, buffer full");
+                }
+                for (int n = 0; n < count; n++) {
+                    store.append(batch_times[n], batch_levels[n], batch_tags[n], batch_messages[n]);
+
+                    batch_tags[n] = null;
+                    batch_messages[n] = null;
+                }
+                store.flush();
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "[writeLoop] Cannot write " + directory + ": " + e);
+            }
+        }
+
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "[writeLoop] Cannot close " + directory + ": " + e);
+            }
+        }
+    }
+}
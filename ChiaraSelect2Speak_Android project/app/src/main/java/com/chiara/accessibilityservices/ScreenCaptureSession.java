@@ -0,0 +1,330 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.content.Context;
+import android.graphics.PixelFormat;
+import android.graphics.Point;
+import android.hardware.display.DisplayManager;
+import android.hardware.display.VirtualDisplay;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.projection.MediaProjection;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Display;
+import android.view.OrientationEventListener;
+import android.view.WindowManager;
+
+/* Long-lived screen capture session, owned by MainService.
+ * The MediaProjection is started once, and the VirtualDisplay keeps an ImageReader warm with the
+ * latest screen content, so that a screenshot is a grab of the latest frame instead of a new
+ * activity, virtual display and capture thread for every selection.
+ * A requested screenshot is frozen as a ScreenFrame, without copying its pixels: the selected
+ * region is copied out of it later, see ScreenFrame.copyRegion(). */
+class ScreenCaptureSession {
+
+    private static final String DEBUG_TAG = "[Chiara_ScreenCaptureSession]";
+
+    private static final String SCREENCAP_NAME = "screencap";
+    private static final int VIRTUAL_DISPLAY_FLAGS = DisplayManager.VIRTUAL_DISPLAY_FLAG_OWN_CONTENT_ONLY | DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC;
+    private static final int MAX_IMAGES = 3; // frozen frame + latest frame held by the session + frame being acquired
+
+    /* Receives the requested screenshots, on the main thread. */
+    interface OnScreenshotListener {
+        // called with the captured frame; the frame stays owned by the session, and is valid until
+        // the next screenshot is requested
+        void onScreenshotAvailable(ScreenFrame frame);
+
+        // called when no frame will be delivered (e.g. capture error, projection stopped)
+        void onScreenshotFailed();
+    }
+
+    private final Context mContext;
+    private final BitmapPool mBitmapPool;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // capture handling thread, quit when the session is released
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    private MediaProjection mMediaProjection;
+    private MediaProjectionStopCallback mMediaProjectionStopCallback;
+    private ImageReader mImageReader;
+    private VirtualDisplay mVirtualDisplay;
+    private Display mDisplay;
+    private int mDensity;
+    private int mWidth;
+    private int mHeight;
+    private int mRotation;
+    private OrientationChangeCallback mOrientationChangeCallback;
+
+    // latest frame produced by the virtual display, and frame handed to the listener (accessed on the capture thread only)
+    private Image mLatestImage;
+    private ScreenFrame mFrozenFrame;
+    // listener waiting for the next frame (accessed on the capture thread only)
+    private OnScreenshotListener mPendingListener;
+
+    private volatile boolean mActive = false;
+
+    ScreenCaptureSession(Context context, BitmapPool bitmapPool) {
+        mContext = context;
+        mBitmapPool = bitmapPool;
+    }
+
+    /****************************************** Session lifecycle *********************************/
+    void start(MediaProjection mediaProjection) {
+        if (mThread != null) release();
+
+        mMediaProjection = mediaProjection;
+
+        // start capture handling thread
+        mThread = new HandlerThread("ScreenCaptureThread");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        // display metrics
+        mDensity = mContext.getResources().getDisplayMetrics().densityDpi;
+        mDisplay = ((WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+        mRotation = mDisplay.getRotation();
+
+        // create virtual display depending on device width / height
+        createVirtualDisplay();
+
+        // register orientation change callback
+        mOrientationChangeCallback = new OrientationChangeCallback(mContext);
+        if (mOrientationChangeCallback.canDetectOrientation()) {
+            mOrientationChangeCallback.enable();
+        }
+
+        // register media projection stop callback
+        mMediaProjectionStopCallback = new MediaProjectionStopCallback();
+        mMediaProjection.registerCallback(mMediaProjectionStopCallback, mHandler);
+
+        mActive = true;
+        Log.i(DEBUG_TAG, "[start] Capture session started: " + mWidth + "x" + mHeight);
+    }
+
+    boolean isActive() {
+        return mActive;
+    }
+
+    void release() {
+        if (mThread == null) return;
+
+        mActive = false;
+
+        if (mOrientationChangeCallback != null) mOrientationChangeCallback.disable();
+
+        final MediaProjection mediaProjection = mMediaProjection;
+        final HandlerThread thread = mThread;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseVirtualDisplay();
+                if (mediaProjection != null) {
+                    mediaProjection.unregisterCallback(mMediaProjectionStopCallback);
+                    mediaProjection.stop();
+                }
+                failPendingRequest();
+                thread.quitSafely();
+            }
+        });
+
+        mMediaProjection = null;
+        mThread = null;
+
+        Log.i(DEBUG_TAG, "[release] Capture session released");
+    }
+
+    /****************************************** Frame grabbing ************************************/
+    /* Hands the latest screen content to listener, or the next frame if none has been produced yet. */
+    void requestScreenshot(final OnScreenshotListener listener) {
+        if (!mActive) {
+            dispatchScreenshotFailed(listener);
+            return;
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mLatestImage != null) {
+                    deliverFrame(freezeLatestImage(), listener);
+                }
+                else if (mFrozenFrame != null && !mFrozenFrame.isClosed()) {
+                    // the screen did not change since the last frozen frame
+                    deliverFrame(mFrozenFrame, listener);
+                }
+                else {
+                    // the virtual display has not produced a frame yet, serve the next one
+                    if (mPendingListener != null) dispatchScreenshotFailed(mPendingListener);
+                    mPendingListener = listener;
+                }
+            }
+        });
+    }
+
+    /* Forgets the listener waiting for the next frame, if any: it is not called anymore. A frame
+     * already handed over is still delivered. */
+    void cancelScreenshotRequest() {
+        if (!mActive) return;
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingListener = null;
+            }
+        });
+    }
+
+    // moves the latest image into a new frozen frame, replacing the previous one
+    private ScreenFrame freezeLatestImage() {
+        if (mFrozenFrame != null) mFrozenFrame.close();
+        mFrozenFrame = new ScreenFrame(mLatestImage, mWidth, mHeight, mBitmapPool);
+        mLatestImage = null;
+
+        return mFrozenFrame;
+    }
+
+    private void deliverFrame(ScreenFrame frame, OnScreenshotListener listener) {
+        // hand the frame over
+        dispatchScreenshotAvailable(frame, listener);
+    }
+
+    private void failPendingRequest() {
+        if (mPendingListener != null) {
+            dispatchScreenshotFailed(mPendingListener);
+            mPendingListener = null;
+        }
+    }
+
+    private void dispatchScreenshotAvailable(final ScreenFrame frame, final OnScreenshotListener listener) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onScreenshotAvailable(frame);
+            }
+        });
+    }
+
+    private void dispatchScreenshotFailed(final OnScreenshotListener listener) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onScreenshotFailed();
+            }
+        });
+    }
+
+    /****************************************** Factoring Virtual Display creation ****************/
+    private void createVirtualDisplay() {
+        // get width and height
+        Point size = new Point();
+        mDisplay.getSize(size);
+        mWidth = size.x;
+        mHeight = size.y;
+        mBitmapPool.setDisplaySize(mWidth, mHeight);
+
+        // start capture reader
+        mImageReader = ImageReader.newInstance(mWidth, mHeight, PixelFormat.RGBA_8888, MAX_IMAGES);
+        mVirtualDisplay = mMediaProjection.createVirtualDisplay(SCREENCAP_NAME, mWidth, mHeight, mDensity, VIRTUAL_DISPLAY_FLAGS, mImageReader.getSurface(), null, mHandler);
+        mImageReader.setOnImageAvailableListener(new ImageAvailableListener(), mHandler);
+    }
+
+    // called on the capture thread
+    private void releaseVirtualDisplay() {
+        if (mVirtualDisplay != null) mVirtualDisplay.release();
+        if (mLatestImage != null) mLatestImage.close();
+        if (mFrozenFrame != null) mFrozenFrame.close();
+        if (mImageReader != null) {
+            mImageReader.setOnImageAvailableListener(null, null);
+            mImageReader.close();
+        }
+
+        mVirtualDisplay = null;
+        mLatestImage = null;
+        mFrozenFrame = null;
+        mImageReader = null;
+    }
+
+    /****************************************** Private Classes ***********************************/
+    private class ImageAvailableListener implements ImageReader.OnImageAvailableListener {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            try {
+                Image image = reader.acquireLatestImage();
+                if (image == null) return;
+
+                // keep only the latest frame
+                if (mLatestImage != null) mLatestImage.close();
+                mLatestImage = image;
+
+                // serve a request that was waiting for the first frame
+                if (mPendingListener != null) {
+                    deliverFrame(freezeLatestImage(), mPendingListener);
+                    mPendingListener = null;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private class OrientationChangeCallback extends OrientationEventListener {
+
+        OrientationChangeCallback(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void onOrientationChanged(int orientation) {
+            final int rotation = mDisplay.getRotation();
+            if (rotation != mRotation) {
+                mRotation = rotation;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mMediaProjection == null) return;
+                        try {
+                            // clean up
+                            releaseVirtualDisplay();
+
+                            // re-create virtual display depending on device width / height
+                            createVirtualDisplay();
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private class MediaProjectionStopCallback extends MediaProjection.Callback {
+        @Override
+        public void onStop() {
+            // called on the capture thread
+            Log.i(DEBUG_TAG, "[MediaProjectionStopCallback] stopping projection.");
+
+            mActive = false;
+            releaseVirtualDisplay();
+            failPendingRequest();
+            if (mOrientationChangeCallback != null) mOrientationChangeCallback.disable();
+            if (mMediaProjection != null) mMediaProjection.unregisterCallback(MediaProjectionStopCallback.this);
+        }
+    }
+}
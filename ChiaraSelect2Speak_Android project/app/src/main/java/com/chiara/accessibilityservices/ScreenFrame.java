@@ -0,0 +1,107 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/* A screenshot frozen inside the ImageReader of the ScreenCaptureSession.
+ * Pixels are not copied when the frame is captured: only the region that is actually selected
+ * is copied out of the RGBA plane, row by row, into a tightly sized bitmap.
+ * The frame is owned by the session, which closes it when a newer frame is requested or when the
+ * virtual display is released; after that, copyRegion() returns null. */
+class ScreenFrame {
+    private static final int BYTES_PER_PIXEL = 4; // RGBA_8888
+
+    private Image mImage;
+    private final int mWidth;
+    private final int mHeight;
+    private final BitmapPool mBitmapPool;
+
+    ScreenFrame(Image image, int width, int height, BitmapPool bitmapPool) {
+        mImage = image;
+        mWidth = width;
+        mHeight = height;
+        mBitmapPool = bitmapPool;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    synchronized boolean isClosed() {
+        return mImage == null;
+    }
+
+    /* Copies the given region (clipped to the frame) into an ARGB_8888 bitmap taken from the pool;
+     * give it back with BitmapPool.releaseBitmap() once done.
+     * Returns null if the region is empty or the frame has been closed. */
+    synchronized Bitmap copyRegion(int left, int top, int width, int height) {
+        if (mImage == null) return null;
+
+        // clip to frame
+        if (left < 0) { width += left; left = 0; }
+        if (top < 0)  { height += top; top = 0; }
+        if (left + width > mWidth)  width  = mWidth - left;
+        if (top + height > mHeight) height = mHeight - top;
+        if (width <= 0 || height <= 0) return null;
+
+        // copy only the selected columns of the selected rows
+        ByteBuffer region = mBitmapPool.acquireBuffer(width * height * BYTES_PER_PIXEL);
+        copyRegionTo(region, left, top, width, height);
+        region.rewind();
+
+        // RGBA_8888 plane bytes have the same memory layout as an ARGB_8888 bitmap
+        Bitmap bitmap = mBitmapPool.acquireBitmap(width, height);
+        bitmap.copyPixelsFromBuffer(region);
+        mBitmapPool.releaseBuffer(region);
+
+        return bitmap;
+    }
+
+    /* Copies the given region, which must lie inside the frame, as tightly packed RGBA rows at the
+     * position of dst. Returns false if the frame has been closed. */
+    synchronized boolean copyRegionTo(ByteBuffer dst, int left, int top, int width, int height) {
+        if (mImage == null) return false;
+
+        Image.Plane plane = mImage.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer().duplicate();
+        int pixelStride = plane.getPixelStride();
+        int rowStride = plane.getRowStride();
+
+        int regionRowBytes = width * pixelStride;
+        for (int row = 0; row < height; row++) {
+            int offset = (top + row) * rowStride + left * pixelStride;
+            buffer.limit(offset + regionRowBytes);
+            buffer.position(offset);
+            dst.put(buffer);
+        }
+
+        return true;
+    }
+
+    synchronized void close() {
+        if (mImage != null) {
+            mImage.close();
+            mImage = null;
+        }
+    }
+}
@@ -8,52 +8,38 @@ import android.Manifest;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
-import android.graphics.PixelFormat;
-import android.graphics.Point;
-import android.hardware.display.DisplayManager;
-import android.hardware.display.VirtualDisplay;
-import android.media.Image;
-import android.media.ImageReader;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
 import android.support.v4.app.ActivityCompat;
-import android.util.DisplayMetrics;
 import android.util.Log;
-import android.view.Display;
-import android.view.OrientationEventListener;
-
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.ByteBuffer;
 
+/* Asks for the screen capture permission and hands the resulting MediaProjection over to the
+ * ScreenCaptureSession owned by MainService. It is only started when no session is active. */
 public class ScreenshotActivity extends Activity {
 
     //private static final String DEBUG_TAG = ScreenshotActivity.class.getName();
     private static final String DEBUG_TAG = "[Chiara_ScreenshotActivity]";
 
     private static final int REQUEST_CODE = 100;
-    private static String SCREENSHOTS_DIRECTORY;
-    private static int IMAGES_PRODUCED;
-    private static final String SCREENCAP_NAME = "screencap";
-    private static final int VIRTUAL_DISPLAY_FLAGS = DisplayManager.VIRTUAL_DISPLAY_FLAG_OWN_CONTENT_ONLY | DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC;
-    private static MediaProjection sMediaProjection;
+
+    // receives the projection, on the main thread
+    private static OnProjectionListener sOnProjectionListener;
 
     private MediaProjectionManager mProjectionManager;
-    private ImageReader mImageReader;
-    private Handler mHandler;
-    private Display mDisplay;
-    private VirtualDisplay mVirtualDisplay;
-    private int mDensity;
-    private int mWidth;
-    private int mHeight;
-    private int mRotation;
-    private OrientationChangeCallback mOrientationChangeCallback;
+
+    /****************************************** Projection listener ******************************/
+    interface OnProjectionListener {
+        // called with the granted projection; the listener takes ownership of it
+        void onProjectionGranted(MediaProjection mediaProjection);
+
+        // called when the screen capture permission has been denied
+        void onProjectionDenied();
+    }
+
+    static void setOnProjectionListener(OnProjectionListener listener) {
+        sOnProjectionListener = listener;
+    }
 
     /****************************************** Activity Lifecycle methods ************************/
     @Override
@@ -68,179 +54,29 @@ public class ScreenshotActivity extends Activity {
 
         // start projection
         startActivityForResult(mProjectionManager.createScreenCaptureIntent(), REQUEST_CODE);
-
-        // start capture handling thread
-        new Thread() {
-            @Override
-            public void run() {
-                Looper.prepare();
-                mHandler = new Handler();
-                Looper.loop();
-            }
-        }.start();
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == REQUEST_CODE) {
-            sMediaProjection = mProjectionManager.getMediaProjection(resultCode, data);
-
-            if (sMediaProjection != null) {
-                File externalFilesDir = getExternalFilesDir(null);
-                if (externalFilesDir != null) {
-                    SCREENSHOTS_DIRECTORY = externalFilesDir.getAbsolutePath() + "/";
-                    File storeDirectory = new File(SCREENSHOTS_DIRECTORY);
-
-                    if (!storeDirectory.exists()) {
-                        boolean success = storeDirectory.mkdirs();
-                        if (!success) {
-                            Log.e(DEBUG_TAG, "failed to create file storage directory.");
-                            return;
-                        }
-                    }
-                } else {
-                    Log.e(DEBUG_TAG, "failed to create file storage directory, getExternalFilesDir is null.");
-                    return;
-                }
+            MediaProjection mediaProjection = mProjectionManager.getMediaProjection(resultCode, data);
 
-                // display metrics
-                DisplayMetrics metrics = getResources().getDisplayMetrics();
-                mDensity = metrics.densityDpi;
-                mDisplay = getWindowManager().getDefaultDisplay();
-
-                // create virtual display depending on device width / height
-                createVirtualDisplay();
-
-                // register orientation change callback
-                mOrientationChangeCallback = new OrientationChangeCallback(this);
-                if (mOrientationChangeCallback.canDetectOrientation()) {
-                    mOrientationChangeCallback.enable();
+            if (mediaProjection != null) {
+                if (sOnProjectionListener != null) {
+                    sOnProjectionListener.onProjectionGranted(mediaProjection);
                 }
-
-                // register media projection stop callback
-                sMediaProjection.registerCallback(new MediaProjectionStopCallback(), mHandler);
-            }
-
-            IMAGES_PRODUCED = 0;
-            this.finish();
-        }
-    }
-
-    /****************************************** Factoring Virtual Display creation ****************/
-    private void createVirtualDisplay() {
-        // get width and height
-        Point size = new Point();
-        mDisplay.getSize(size);
-        mWidth = size.x;
-        mHeight = size.y;
-
-        // start capture reader
-        mImageReader = ImageReader.newInstance(mWidth, mHeight, PixelFormat.RGBA_8888, 2);
-        mVirtualDisplay = sMediaProjection.createVirtualDisplay(SCREENCAP_NAME, mWidth, mHeight, mDensity, VIRTUAL_DISPLAY_FLAGS, mImageReader.getSurface(), null, mHandler);
-        mImageReader.setOnImageAvailableListener(new ImageAvailableListener(), mHandler);
-    }
-
-    /****************************************** Private Classes ***********************************/
-    private class ImageAvailableListener implements ImageReader.OnImageAvailableListener {
-        @Override
-        public void onImageAvailable(ImageReader reader) {
-            Image image = null;
-            FileOutputStream fos = null;
-            Bitmap bitmap = null;
-
-            try {
-                image = reader.acquireLatestImage();
-                if (image != null) {
-                    Image.Plane[] planes = image.getPlanes();
-                    ByteBuffer buffer = planes[0].getBuffer();
-                    int pixelStride = planes[0].getPixelStride();
-                    int rowStride = planes[0].getRowStride();
-                    int rowPadding = rowStride - pixelStride * mWidth;
-
-                    // create bitmap
-                    bitmap = Bitmap.createBitmap(mWidth + rowPadding / pixelStride, mHeight, Bitmap.Config.ARGB_8888);
-
-                    bitmap.copyPixelsFromBuffer(buffer);
-
-                    // write bitmap to a file
-                    String filename = SCREENSHOTS_DIRECTORY + IMAGES_PRODUCED + ".png";
-                    fos = new FileOutputStream(filename);
-                    bitmap.compress(CompressFormat.JPEG, 100, fos);
-
-                    IMAGES_PRODUCED++;
-                    //Log.i(DEBUG_TAG, "Captured image " + IMAGES_PRODUCED + ", path: " + filename);
-
-                    // stop
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (sMediaProjection != null) {
-                                sMediaProjection.stop();
-                            }
-                        }
-                    });
-                }
-
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                if (fos != null) {
-                    try {
-                        fos.close();
-                    } catch (IOException ioe) {
-                        ioe.printStackTrace();
-                    }
-                }
-
-                if (bitmap != null) {
-                    bitmap.recycle();
-                }
-
-                if (image != null) {
-                    image.close();
+                else {
+                    mediaProjection.stop();
                 }
             }
-        }
-    }
-
-    private class OrientationChangeCallback extends OrientationEventListener {
-
-        OrientationChangeCallback(Context context) {
-            super(context);
-        }
-
-        @Override
-        public void onOrientationChanged(int orientation) {
-            final int rotation = mDisplay.getRotation();
-            if (rotation != mRotation) {
-                mRotation = rotation;
-                try {
-                    // clean up
-                    if (mVirtualDisplay != null) mVirtualDisplay.release();
-                    if (mImageReader != null) mImageReader.setOnImageAvailableListener(null, null);
-
-                    // re-create virtual display depending on device width / height
-                    createVirtualDisplay();
-                } catch (Exception e) {
-                    e.printStackTrace();
+            else {
+                Log.e(DEBUG_TAG, "screen capture permission denied, no screenshot will be taken.");
+                if (sOnProjectionListener != null) {
+                    sOnProjectionListener.onProjectionDenied();
                 }
             }
-        }
-    }
 
-    private class MediaProjectionStopCallback extends MediaProjection.Callback {
-        @Override
-        public void onStop() {
-            Log.i("ScreenCapture", "stopping projection.");
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    if (mVirtualDisplay != null) mVirtualDisplay.release();
-                    if (mImageReader != null) mImageReader.setOnImageAvailableListener(null, null);
-                    if (mOrientationChangeCallback != null) mOrientationChangeCallback.disable();
-                    sMediaProjection.unregisterCallback(MediaProjectionStopCallback.this);
-                }
-            });
+            this.finish();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,156 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/* Keeps the latest screenshot, numbered by a generation that grows with every screenshot: readers
+ * take the newest frame with getLatest(), and check with getGeneration() that the work they
+ * started on a frame is still about the newest one.
+ * Frames stay in memory (owned by the ScreenCaptureSession); for debugging, they can also be
+ * dumped to directory as <generation>.frame (see FrameStore), keeping the last KEEP_FRAMES.
+ * A frame is written to a temporary file, renamed into place once complete: a frame closed while
+ * being written leaves no file behind.
+ * Files are only written and deleted on the store's own thread, by name: the directory is listed
+ * once, by deleteOldFiles(), to remove what earlier versions left behind.
+ *
+ * Called on the main thread. */
+class ScreenshotStore {
+    private static final String DEBUG_TAG = "[Chiara_ScreenshotStore]";
+
+    private static final int KEEP_FRAMES = 5; // dumped frames kept on disk
+    private static final String LEGACY_EXTENSION = ".png";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private final File directory;
+    private final boolean save_frames;
+
+    private ScreenFrame latest_frame;   // null until the first screenshot, or after clear()
+    private int generation = 0;         // generation of latest_frame, 0 before the first screenshot
+
+    // generations of the dumped frames on disk, oldest first, on the store thread
+    private final ArrayDeque<Integer> written_generations = new ArrayDeque<>();
+
+    // file handling thread
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    ScreenshotStore(File directory, boolean save_frames) {
+        this.directory = directory;
+        this.save_frames = save_frames;
+
+        thread = new HandlerThread("ScreenshotStoreThread", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /* Makes frame the latest screenshot, and returns its generation. */
+    int put(final ScreenFrame frame) {
+        latest_frame = frame;
+        final int frame_generation = ++generation;
+
+        if (save_frames) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    writeFrame(frame, frame_generation);
+                }
+            });
+        }
+
+        return frame_generation;
+    }
+
+    /* Returns the latest screenshot, null if there is none (its generation is getGeneration()). */
+    ScreenFrame getLatest() {
+        return latest_frame;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    /* Forgets the latest screenshot (e.g. a newer one has been requested) and starts a new
+     * generation, without a frame: work started on the forgotten screenshot sees it is stale. */
+    void clear() {
+        latest_frame = null;
+        generation++;
+    }
+
+    /* Deletes, off the calling thread, the dumped frames and the screenshots left in
+     * legacy_directory by earlier versions. */
+    void deleteOldFiles(final File legacy_directory) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                deleteFiles(directory, FrameStore.EXTENSION);
+                deleteFiles(directory, TEMP_EXTENSION);
+                deleteFiles(legacy_directory, LEGACY_EXTENSION);
+                deleteFiles(legacy_directory, FrameStore.EXTENSION);
+            }
+        });
+    }
+
+    void release() {
+        latest_frame = null;
+        thread.quitSafely();
+    }
+
+    /****************************************** Store thread **************************************/
+    private void writeFrame(ScreenFrame frame, int frame_generation) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(DEBUG_TAG, "[writeFrame] Cannot create " + directory);
+            return;
+        }
+
+        File file = frameFile(frame_generation);
+        File temp_file = new File(directory, file.getName() + TEMP_EXTENSION);
+        try {
+            FrameStore.write(temp_file, frame);
+            if (!temp_file.renameTo(file)) throw new IOException("cannot rename " + temp_file);
+            written_generations.add(frame_generation);
+        } catch (IOException e) {
+            temp_file.delete();
+            Log.w(DEBUG_TAG, "[writeFrame] Frame " + frame_generation + " not written: " + e.getMessage());
+        }
+
+        // the files of the older generations are known by name (cleared generations have none)
+        while (written_generations.size() > KEEP_FRAMES) {
+            frameFile(written_generations.poll()).delete();
+        }
+    }
+
+    private File frameFile(int frame_generation) {
+        return new File(directory, frame_generation + FrameStore.EXTENSION);
+    }
+
+    private static void deleteFiles(File folder, String extension) {
+        File[] files = folder.listFiles();
+        if (files == null) return;
+
+        int deleted = 0;
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(extension) && file.delete()) deleted++;
+        }
+        if (deleted > 0) Log.i(DEBUG_TAG, "[deleteFiles] Deleted " + deleted + " " + extension + " files in " + folder);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+/* Transparent full-screen view showing the area being selected, as a rounded rectangle drawn
+ * straight in onDraw() from its corners: there is no full-screen bitmap to clear, redraw and upload
+ * on every move, the hardware-accelerated view only replays a single drawRoundRect().
+ * Public, to be inflated from the layout. Called on the main thread. */
+public class SelectionOverlayView extends View {
+    private static final int STROKE_WIDTH = 10;     // [px]
+    private static final int CORNER_RADIUS = 25;    // [px]
+
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final Rect selection = new Rect();      // empty when nothing is selected
+
+    public SelectionOverlayView(Context context) {
+        super(context);
+        init();
+    }
+
+    public SelectionOverlayView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    private void init() {
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setColor(Color.BLUE);
+        paint.setStrokeWidth(STROKE_WIDTH);
+    }
+
+    /* Shows the rectangle with corners (x0, y0) and (x1, y1), in any order. */
+    void setSelection(int x0, int y0, int x1, int y1) {
+        int left = Math.min(x0, x1), top = Math.min(y0, y1);
+        int right = Math.max(x0, x1), bottom = Math.max(y0, y1);
+        if (left == selection.left && top == selection.top && right == selection.right && bottom == selection.bottom) return;
+
+        selection.set(left, top, right, bottom);
+        invalidate();
+    }
+
+    void clearSelection() {
+        if (selection.isEmpty()) return;
+
+        selection.setEmpty();
+        invalidate();
+    }
+
+    @Override protected void onDraw(Canvas canvas) {
+        if (selection.isEmpty()) return;
+
+        canvas.drawRoundRect(selection.left, selection.top, selection.right, selection.bottom, CORNER_RADIUS, CORNER_RADIUS, paint);
+    }
+}
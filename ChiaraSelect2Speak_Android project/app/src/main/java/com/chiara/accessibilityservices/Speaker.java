@@ -0,0 +1,350 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.speech.tts.Voice;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+
+/* Queues text to the TextToSpeech engine with a unique utterance ID per call, and follows the
+ * progress of every utterance through UtteranceProgressListener: the listener is told when the
+ * last queued utterance is done, instead of the caller spinning on tts.isSpeaking().
+ *
+ * Phrases found in speech_cache (if any) are played from their cached audio instead, in their
+ * place in the queue: utterances are handed to the engine only up to the next cached phrase, which
+ * is played once the engine is done with the previous ones. While nothing is being spoken, the
+ * phrases waiting in speech_cache are synthesized to file, one at a time; a synthesis in progress
+ * is stopped as soon as an utterance is handed to the engine (it would be queued behind it), and
+ * retried once the speaker is idle again.
+ *
+ * Each utterance is spoken with the voice of its language, among the languages given to
+ * setLanguages(): their voices are loaded once, and warmed up by synthesizing a short text with
+ * each, so that switching voice between utterances does not load the voice in the middle of a
+ * reading.
+ *
+ * Called on the main thread. */
+class Speaker extends UtteranceProgressListener {
+    private static final String DEBUG_TAG = "[Chiara_Speaker]";
+
+    private static final String UTTERANCE_PREFIX = "utterance_";
+    private static final String SYNTHESIS_PREFIX = "synthesis_";
+    private static final String WARM_UP_PREFIX = "warm_up_";
+    private static final String WARM_UP_TEXT = "ok";
+
+    interface Listener {
+        // called on the main thread when an utterance starts being spoken
+        void onSpeechStarted();
+
+        // called on the main thread when all queued utterances are done, stopped or failed
+        void onSpeechDone();
+    }
+
+    private static class Utterance {
+        final String id;
+        final String text;
+        final Voice voice;      // null for the engine's current voice
+        final String cache_key; // null if not played from the cache
+
+        Utterance(String id, String text, Voice voice, String cache_key) {
+            this.id = id;
+            this.text = text;
+            this.voice = voice;
+            this.cache_key = cache_key;
+        }
+    }
+
+    private final TextToSpeech tts;
+    private final SpeechCache speech_cache; // may be null
+    private final Listener listener;
+    private final Handler main_handler = new Handler(Looper.getMainLooper());
+
+    // utterances not handed to the engine or played yet
+    private final ArrayDeque<Utterance> queue = new ArrayDeque<>();
+    // utterances handed to the engine and not done yet, with the time they were handed over
+    private final HashMap<String, Long> pending_utterances = new HashMap<>();
+    private Utterance playing_cached = null;
+    private String synthesizing = null;   // cache key of the phrase being synthesized to file
+    private String synthesis_id = null;   // utterance ID of that synthesis, null if none
+    private int next_utterance_id = 0;
+
+    private long tts_latency_ms = 0;      // mean time the engine takes to start speaking
+
+    // voices of the languages set by setLanguages(), the first one is the default
+    private final HashMap<Locale, Voice> voices = new HashMap<>();
+    private Voice default_voice = null;
+    private Voice current_voice = null;   // voice set on the engine
+    private File warm_up_directory;
+
+    Speaker(TextToSpeech tts, SpeechCache speech_cache, Listener listener) {
+        this.tts = tts;
+        this.speech_cache = speech_cache;
+        this.listener = listener;
+
+        tts.setOnUtteranceProgressListener(this);
+    }
+
+    /* Loads the voices of languages, and warms them up by synthesizing a short text with each to
+     * a file in directory. To be called once the engine is initialized; the first available
+     * language is the default one. */
+    void setLanguages(Locale[] languages, File directory) {
+        voices.clear();
+        default_voice = null;
+        warm_up_directory = directory;
+
+        for (Locale language : languages) {
+            int result = tts.setLanguage(language);
+            Voice voice = tts.getVoice();
+            if (result == TextToSpeech.LANG_MISSING_DATA || result == TextToSpeech.LANG_NOT_SUPPORTED || voice == null) {
+                Log.w(DEBUG_TAG, "[setLanguages] No voice for " + language);
+                continue;
+            }
+
+            voices.put(language, voice);
+            if (default_voice == null) default_voice = voice;
+            current_voice = voice;
+
+            tts.synthesizeToFile(WARM_UP_TEXT, null, warmUpFile(language.getLanguage()), WARM_UP_PREFIX + language.getLanguage());
+            Log.i(DEBUG_TAG, "[setLanguages] Voice " + voice.getName() + " loaded for " + language);
+        }
+
+        setVoice(default_voice);
+    }
+
+    /* Queues text after the utterances already queued, in the default language; returns its
+     * utterance ID. */
+    String speak(String text) {
+        return speak(text, null);
+    }
+
+    /* Same as speak(text), with the voice of language (the default one if null or not set). */
+    String speak(String text, Locale language) {
+        String utterance_id = UTTERANCE_PREFIX + (next_utterance_id++);
+
+        Voice voice = (language != null) ? voices.get(language) : null;
+        if (voice == null) voice = default_voice;
+
+        String cache_key = null;
+        if (speech_cache != null) {
+            String key = cacheKey(text, voice);
+            if (speech_cache.lookup(key, text, (voice != null) ? voice.getName() : null)) cache_key = key;
+        }
+
+        queue.add(new Utterance(utterance_id, text, voice, cache_key));
+        dispatchNext();
+
+        return utterance_id;
+    }
+
+    /* Stops the current utterance and flushes the queued ones. */
+    void stop() {
+        queue.clear();
+        pending_utterances.clear();   // onStop() is not guaranteed for utterances the engine has not started yet
+        synthesizing = synthesis_id = null; // the synthesis in progress is stopped too, and retried later
+        tts.stop();
+
+        if (playing_cached != null) {
+            playing_cached = null;
+            speech_cache.stop();
+        }
+
+        main_handler.post(dispatch_speech_done);
+    }
+
+    boolean isSpeaking() {
+        return !queue.isEmpty() || !pending_utterances.isEmpty() || playing_cached != null;
+    }
+
+    private final Runnable dispatch_speech_done = new Runnable() {
+        @Override
+        public void run() {
+            if (!isSpeaking()) {
+                listener.onSpeechDone();
+                synthesizeNext();
+            }
+        }
+    };
+
+    // hands the queued utterances to the engine, or plays the next cached one
+    private void dispatchNext() {
+        while (!queue.isEmpty() && playing_cached == null) {
+            Utterance next = queue.peek();
+
+            if (next.cache_key != null) {
+                // wait for the engine to be done with the previous utterances
+                if (!pending_utterances.isEmpty()) return;
+
+                queue.poll();
+                playing_cached = next;
+                final Utterance played = next;
+                speech_cache.play(next.cache_key, tts_latency_ms, new SpeechCache.PlaybackListener() {
+                    @Override
+                    public void onPlaybackDone(boolean success) {
+                        playbackDone(played, success);
+                    }
+                });
+
+                // first audio of a traced selection (the playback start is not reported)
+                PipelineTrace.instant("cached utterance played");
+                PipelineTrace.finish();
+                listener.onSpeechStarted();
+            }
+            else {
+                queue.poll();
+                long trace_start = PipelineTrace.begin();
+                cancelSynthesis();
+                setVoice(next.voice);
+                pending_utterances.put(next.id, System.currentTimeMillis());
+                PipelineTrace.asyncBegin("utterance start", next.id.hashCode());
+                if (tts.speak(next.text, TextToSpeech.QUEUE_ADD, null, next.id) != TextToSpeech.SUCCESS) {
+                    pending_utterances.remove(next.id);
+                }
+                PipelineTrace.end("tts.speak", trace_start);
+            }
+        }
+
+        if (!isSpeaking()) main_handler.post(dispatch_speech_done);
+    }
+
+    // synthesizes the next phrase waiting in the cache, while nothing is being spoken
+    private void synthesizeNext() {
+        if (speech_cache == null || synthesizing != null || isSpeaking()) return;
+
+        String key = speech_cache.nextToSynthesize();
+        if (key == null) return;
+
+        synthesizing = key;
+        synthesis_id = SYNTHESIS_PREFIX + (next_utterance_id++);
+        setVoice(findVoice(speech_cache.getVoice(key)));
+        if (tts.synthesizeToFile(speech_cache.getText(key), null, speech_cache.getSynthesisFile(key), synthesis_id) != TextToSpeech.SUCCESS) {
+            synthesizing = synthesis_id = null;
+            speech_cache.onSynthesized(key, false);
+        }
+    }
+
+    // stops the synthesis in progress, if any, so that the next utterance is not queued behind it;
+    // the phrase stays in speech_cache, to be synthesized later
+    private void cancelSynthesis() {
+        if (synthesis_id == null) return;
+
+        synthesizing = synthesis_id = null;
+        tts.stop();
+    }
+
+    // sets voice on the engine, if it is not set already: utterances keep the voice set when they
+    // are queued
+    private void setVoice(Voice voice) {
+        if (voice == null || voice == current_voice) return;
+
+        tts.setVoice(voice);
+        current_voice = voice;
+    }
+
+    private Voice findVoice(String name) {
+        for (Voice voice : voices.values()) {
+            if (voice.getName().equals(name)) return voice;
+        }
+        return default_voice;
+    }
+
+    private File warmUpFile(String language) {
+        return new File(warm_up_directory, WARM_UP_PREFIX + language + ".wav");
+    }
+
+    private String cacheKey(String text, Voice voice) {
+        if (voice == null) voice = tts.getVoice();
+        Locale locale = (voice != null) ? voice.getLocale() : null;
+        String voice_name = (voice != null) ? voice.getName() : null;
+        return SpeechCache.key(text, locale, voice_name);
+    }
+
+    /****************************************** Cached playback ***********************************/
+    private void playbackDone(Utterance utterance, boolean played) {
+        if (utterance != playing_cached) return; // stopped, a newer phrase may be playing
+        playing_cached = null;
+
+        // the cached audio could not be played, speak it instead
+        if (!played) queue.addFirst(new Utterance(utterance.id, utterance.text, utterance.voice, null));
+
+        dispatchNext();
+    }
+
+    /****************************************** UtteranceProgressListener ************************/
+    // called on a TTS binder thread
+    @Override public void onStart(final String utterance_id) {
+        // first audio of a traced selection
+        if (utterance_id.startsWith(UTTERANCE_PREFIX)) {
+            PipelineTrace.asyncEnd("utterance start", utterance_id.hashCode());
+            PipelineTrace.finish();
+        }
+
+        main_handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Long start_time = pending_utterances.get(utterance_id);
+                if (start_time == null) return;
+
+                // mean start latency, over the last utterances
+                long latency = System.currentTimeMillis() - start_time;
+                tts_latency_ms = (tts_latency_ms == 0) ? latency : (3 * tts_latency_ms + latency) / 4;
+
+                listener.onSpeechStarted();
+            }
+        });
+    }
+
+    @Override public void onDone(String utterance_id) {
+        utteranceFinished(utterance_id, true);
+    }
+
+    @Override public void onError(String utterance_id) {
+        utteranceFinished(utterance_id, false);
+    }
+
+    @Override public void onStop(String utterance_id, boolean interrupted) {
+        utteranceFinished(utterance_id, false);
+    }
+
+    private void utteranceFinished(final String utterance_id, final boolean success) {
+        main_handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (utterance_id.startsWith(WARM_UP_PREFIX)) {
+                    warmUpFile(utterance_id.substring(WARM_UP_PREFIX.length())).delete();
+                    return;
+                }
+
+                if (utterance_id.startsWith(SYNTHESIS_PREFIX)) {
+                    if (!utterance_id.equals(synthesis_id)) return; // stopped
+                    String key = synthesizing;
+                    synthesizing = synthesis_id = null;
+                    speech_cache.onSynthesized(key, success);
+
+                    synthesizeNext();
+                    return;
+                }
+
+                if (pending_utterances.remove(utterance_id) != null) dispatchNext();
+            }
+        });
+    }
+}
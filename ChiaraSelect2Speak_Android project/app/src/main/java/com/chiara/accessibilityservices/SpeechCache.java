@@ -0,0 +1,424 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/* On-disk LRU cache of synthesized speech, for the phrases that games repeat all the time (menu
+ * entries, buttons, recurring dialog lines).
+ * Phrases are keyed by their normalized text, locale and voice. A phrase spoken at least
+ * MIN_REPETITIONS times is queued for synthesis with TextToSpeech.synthesizeToFile(), which the
+ * Speaker runs while idle, so that filling the cache never delays reading. Cached phrases are then
+ * played straight from the WAV file through a static AudioTrack, without going through the TTS
+ * engine.
+ * The cache is bounded by max_bytes on disk; the least recently played files are deleted first.
+ * Files are read and played on a background thread. */
+class SpeechCache {
+    private static final String DEBUG_TAG = "[Chiara_SpeechCache]";
+
+    static final String DIRECTORY = "speech_cache";
+    private static final String EXTENSION = ".wav";
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+
+    private static final int MIN_REPETITIONS = 2;   // phrases are cached once they have been spoken this many times
+    private static final int MAX_CHARS = 200;       // longer text is not worth caching, it is rarely repeated
+    private static final int MAX_TRACKED = 500;    // max number of phrases whose repetitions are counted
+
+    interface PlaybackListener {
+        // called on the main thread when the cached phrase has been played, stopped or failed
+        void onPlaybackDone(boolean played);
+    }
+
+    private static class Phrase {
+        final String text;
+        final String voice; // name of the voice to synthesize it with, null for the default one
+
+        Phrase(String text, String voice) {
+            this.text = text;
+            this.voice = voice;
+        }
+    }
+
+    private final File directory;
+    private final long max_bytes;
+
+    // cached files by key, least recently played first, guarded by this
+    private final LinkedHashMap<String, File> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long used_bytes = 0;
+
+    // repetitions of phrases not cached yet, and phrases waiting to be synthesized (main thread)
+    private final HashMap<String, Integer> repetitions = new HashMap<>();
+    private final LinkedHashMap<String, Phrase> to_synthesize = new LinkedHashMap<>();
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler main_handler = new Handler(Looper.getMainLooper());
+    private AudioTrack track; // playing track, on the cache thread
+
+    // counters
+    private int hits = 0, misses = 0;
+    private long saved_ms = 0;
+
+    SpeechCache(File directory, long max_bytes) {
+        this.directory = directory;
+        this.max_bytes = max_bytes;
+
+        thread = new HandlerThread("SpeechCacheThread");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        // load the cache index from disk, off the main thread
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                loadIndex();
+            }
+        });
+    }
+
+    /* Returns the key of text spoken with the given voice (normalized text, locale, voice). */
+    static String key(String text, Locale locale, String voice) {
+        String normalized = text.trim().replaceAll("\\s+", " ");
+        return sha1(locale + "|" + voice + "|" + normalized);
+    }
+
+    static boolean isCacheable(String text) {
+        return text.length() <= MAX_CHARS;
+    }
+
+    /* Returns true if the phrase with the given key can be played from the cache. Counts a hit or
+     * a miss; a miss counts a repetition of text, and queues it for synthesis with voice when it
+     * repeats. */
+    boolean lookup(String key, String text, String voice) {
+        synchronized (this) {
+            if (files.containsKey(key)) {
+                hits++;
+                return true;
+            }
+            misses++;
+        }
+
+        if (!isCacheable(text) || to_synthesize.containsKey(key)) return false;
+
+        if (repetitions.size() >= MAX_TRACKED) repetitions.clear();
+        Integer count = repetitions.get(key);
+        count = (count == null) ? 1 : count + 1;
+        if (count >= MIN_REPETITIONS) {
+            repetitions.remove(key);
+            to_synthesize.put(key, new Phrase(text, voice));
+        }
+        else {
+            repetitions.put(key, count);
+        }
+
+        return false;
+    }
+
+    /****************************************** Synthesis *****************************************/
+    /* Returns the key of the next phrase to synthesize, or null. */
+    String nextToSynthesize() {
+        Iterator<String> keys = to_synthesize.keySet().iterator();
+        return keys.hasNext() ? keys.next() : null;
+    }
+
+    String getText(String key) {
+        return to_synthesize.get(key).text;
+    }
+
+    String getVoice(String key) {
+        return to_synthesize.get(key).voice;
+    }
+
+    /* File that synthesizeToFile() should write the phrase with the given key to. */
+    File getSynthesisFile(String key) {
+        return new File(directory, key + TEMPORARY_EXTENSION);
+    }
+
+    /* Called once the phrase with the given key has been synthesized (or has failed). */
+    void onSynthesized(final String key, final boolean success) {
+        to_synthesize.remove(key);
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                File temporary = getSynthesisFile(key);
+                File file = new File(directory, key + EXTENSION);
+
+                if (success && temporary.length() > 0 && temporary.renameTo(file)) {
+                    add(key, file);
+                }
+                else {
+                    temporary.delete();
+                }
+            }
+        });
+    }
+
+    /****************************************** Playback ******************************************/
+    /* Plays the cached phrase with the given key. tts_latency_ms is the time the TTS engine
+     * usually takes to start speaking, counted as saved when playback starts sooner. */
+    void play(final String key, final long tts_latency_ms, final PlaybackListener listener) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                long start_time = System.currentTimeMillis();
+                File file;
+                synchronized (SpeechCache.this) {
+                    file = files.get(key);
+                }
+
+                boolean started = false;
+                try {
+                    if (file != null) started = startTrack(readWav(file), listener);
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "[play] Failed to read " + file + ": " + e);
+                    remove(key);
+                }
+
+                if (started) {
+                    synchronized (SpeechCache.this) {
+                        saved_ms += Math.max(0, tts_latency_ms - (System.currentTimeMillis() - start_time));
+                    }
+                    file.setLastModified(System.currentTimeMillis());
+                }
+                else {
+                    dispatchPlaybackDone(listener, false);
+                }
+            }
+        });
+    }
+
+    void stop() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopTrack();
+            }
+        });
+    }
+
+    void release() {
+        stop();
+        thread.quitSafely();
+    }
+
+    // on the cache thread
+    private boolean startTrack(Wav wav, final PlaybackListener listener) {
+        stopTrack();
+
+        int frames = wav.pcm.length / (2 * wav.channels);
+        if (frames == 0) return false;
+
+        track = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_ASSISTANCE_ACCESSIBILITY)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .setSampleRate(wav.sample_rate)
+                        .setChannelMask(wav.channels == 2 ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO)
+                        .build())
+                .setTransferMode(AudioTrack.MODE_STATIC)
+                .setBufferSizeInBytes(wav.pcm.length)
+                .build();
+        track.write(wav.pcm, 0, wav.pcm.length);
+
+        track.setNotificationMarkerPosition(frames);
+        track.setPlaybackPositionUpdateListener(new AudioTrack.OnPlaybackPositionUpdateListener() {
+            @Override
+            public void onMarkerReached(AudioTrack finished_track) {
+                if (finished_track != track) return;
+                stopTrack();
+                dispatchPlaybackDone(listener, true);
+            }
+
+            @Override
+            public void onPeriodicNotification(AudioTrack track) { }
+        }, handler);
+
+        track.play();
+        return true;
+    }
+
+    // on the cache thread
+    private void stopTrack() {
+        if (track == null) return;
+
+        track.stop();
+        track.release();
+        track = null;
+    }
+
+    private void dispatchPlaybackDone(final PlaybackListener listener, final boolean played) {
+        main_handler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPlaybackDone(played);
+            }
+        });
+    }
+
+    /****************************************** Stats *********************************************/
+    synchronized String getStats() {
+        int lookups = hits + misses;
+        return hits + " hits, " + misses + " misses (" + (lookups > 0 ? 100 * hits / lookups : 0) + "%)"
+                + ", ~" + saved_ms + " ms saved"
+                + " - " + files.size() + " phrases, " + (used_bytes / 1024) + "/" + (max_bytes / 1024) + " KB";
+    }
+
+    /****************************************** Index *********************************************/
+    // on the cache thread
+    private void loadIndex() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(DEBUG_TAG, "[loadIndex] Cannot create " + directory);
+            return;
+        }
+
+        File[] existing = directory.listFiles();
+        if (existing == null) return;
+
+        // least recently played first
+        Arrays.sort(existing, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        for (File file : existing) {
+            String name = file.getName();
+            if (name.endsWith(EXTENSION)) {
+                add(name.substring(0, name.length() - EXTENSION.length()), file);
+            }
+            else {
+                file.delete(); // synthesis interrupted by the end of the service
+            }
+        }
+    }
+
+    // on the cache thread
+    private void add(String key, File file) {
+        synchronized (this) {
+            File previous = files.put(key, file);
+            if (previous != null) used_bytes -= previous.length();
+            used_bytes += file.length();
+
+            // evict the least recently played files
+            Iterator<Map.Entry<String, File>> iterator = files.entrySet().iterator();
+            while (used_bytes > max_bytes && iterator.hasNext()) {
+                File evicted = iterator.next().getValue();
+                if (evicted == file) continue;
+
+                used_bytes -= evicted.length();
+                iterator.remove();
+                evicted.delete();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (this) {
+            File file = files.remove(key);
+            if (file == null) return;
+
+            used_bytes -= file.length();
+            file.delete();
+        }
+    }
+
+    /****************************************** WAV ***********************************************/
+    private static class Wav {
+        int sample_rate, channels;
+        byte[] pcm;
+    }
+
+    // reads a 16-bit PCM WAV file, as written by synthesizeToFile()
+    private static Wav readWav(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (bytes.length < 12 || buffer.getInt(0) != 0x46464952 /* RIFF */ || buffer.getInt(8) != 0x45564157 /* WAVE */) {
+            throw new IOException("not a WAV file");
+        }
+
+        Wav wav = new Wav();
+        int position = 12;
+        while (position + 8 <= bytes.length) {
+            int chunk_id = buffer.getInt(position);
+            int chunk_size = buffer.getInt(position + 4);
+            int data = position + 8;
+            if (chunk_size < 0 && chunk_id != 0x61746164) break;
+
+            if (chunk_id == 0x20746d66 /* fmt  */) {
+                if (buffer.getShort(data) != 1 || buffer.getShort(data + 14) != 16) throw new IOException("not 16-bit PCM");
+                wav.channels = buffer.getShort(data + 2);
+                wav.sample_rate = buffer.getInt(data + 4);
+            }
+            else if (chunk_id == 0x61746164 /* data */) {
+                // synthesizeToFile() may leave the size unset while writing, take the rest of the file
+                int size = (chunk_size <= 0 || data + chunk_size > bytes.length) ? bytes.length - data : chunk_size;
+                wav.pcm = Arrays.copyOfRange(bytes, data, data + size);
+                break;
+            }
+
+            position = data + chunk_size + (chunk_size & 1);
+        }
+
+        if (wav.pcm == null || wav.sample_rate == 0 || wav.channels == 0) throw new IOException("incomplete WAV file");
+        return wav;
+    }
+
+    private static String sha1(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) hex.append(String.format(Locale.ROOT, "%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Turns the blocks of text read from a selection into utterances sized for the TTS engine:
+ * - adjacent short blocks are joined, up to batch_chars, so that the engine is set up once for
+ *   them and there is no gap between them; a full stop is added between blocks that do not end
+ *   with one, to keep the pause of the block boundary
+ * - blocks longer than max_chars (TextToSpeech.getMaxSpeechInputLength(), text over it is
+ *   rejected by the engine) are split at sentence boundaries, or at spaces when a single sentence
+ *   is too long.
+ * Pure Java, see OcrPipelineBenchmark. */
+class TextBatcher {
+    // joined blocks stay short enough to start speaking quickly and to be cached by SpeechCache
+    static final int DEFAULT_BATCH_CHARS = 200;
+
+    private static final String SENTENCE_END = ".!?;:\u2026";
+
+    private final int max_chars;
+    private final int batch_chars;
+
+    TextBatcher(int max_chars, int batch_chars) {
+        this.max_chars = max_chars;
+        this.batch_chars = Math.min(batch_chars, max_chars);
+    }
+
+    /* Returns the utterances to speak for blocks, in the same order. */
+    List<String> batch(List<String> blocks) {
+        ArrayList<String> utterances = new ArrayList<>();
+        StringBuilder batch = new StringBuilder();
+
+        for (String block : blocks) {
+            block = block.trim();
+            if (block.isEmpty()) continue;
+
+            // long block: flush the batch, and split it
+            if (block.length() > batch_chars) {
+                flush(batch, utterances);
+                split(block, utterances);
+                continue;
+            }
+
+            if (batch.length() > 0) {
+                String separator = isSentenceEnd(batch.charAt(batch.length() - 1)) ? " " : ". ";
+                if (batch.length() + separator.length() + block.length() > batch_chars) {
+                    flush(batch, utterances);
+                }
+                else {
+                    batch.append(separator);
+                }
+            }
+            batch.append(block);
+        }
+        flush(batch, utterances);
+
+        return utterances;
+    }
+
+    // splits text into chunks of at most max_chars, at the last sentence end (or space) of each
+    private void split(String text, List<String> utterances) {
+        int start = 0;
+
+        while (text.length() - start > max_chars) {
+            int end = start + max_chars;
+
+            int cut = lastBoundary(text, start, end, true);
+            if (cut < 0) cut = lastBoundary(text, start, end, false);
+            if (cut < 0) cut = end; // a single word longer than max_chars
+
+            String chunk = text.substring(start, cut).trim();
+            if (!chunk.isEmpty()) utterances.add(chunk);
+            start = cut;
+        }
+
+        String chunk = text.substring(start).trim();
+        if (!chunk.isEmpty()) utterances.add(chunk);
+    }
+
+    // returns the index after the last sentence end (or space) followed by a space in
+    // text[start, end], -1 if there is none
+    private static int lastBoundary(String text, int start, int end, boolean sentence) {
+        for (int i = Math.min(end, text.length() - 1); i > start; i--) {
+            if (!Character.isWhitespace(text.charAt(i))) continue;
+            if (!sentence || isSentenceEnd(text.charAt(i - 1))) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isSentenceEnd(char c) {
+        return SENTENCE_END.indexOf(c) >= 0;
+    }
+
+    private static void flush(StringBuilder batch, List<String> utterances) {
+        if (batch.length() == 0) return;
+
+        utterances.add(batch.toString());
+        batch.setLength(0);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+/* A piece of recognized text and its bounding box, in screen coordinates.
+ * block/line/element are the ordinals of the text inside the recognition result, so that boxes
+ * taken out of a TextIndex can be put back in their original order. */
+class TextBox {
+    static final int BLOCK   = 0;
+    static final int LINE    = 1;
+    static final int ELEMENT = 2;
+
+    final int level;
+    final String text;
+    final int left, top, right, bottom;
+    final int block, line, element;
+
+    TextBox(int level, String text, int left, int top, int right, int bottom, int block, int line, int element) {
+        this.level = level;
+        this.text = text;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        this.block = block;
+        this.line = line;
+        this.element = element;
+    }
+
+    int centerX() {
+        return (left + right) / 2;
+    }
+
+    int centerY() {
+        return (top + bottom) / 2;
+    }
+
+    boolean intersects(int l, int t, int r, int b) {
+        return left < r && l < right && top < b && t < bottom;
+    }
+
+    // the same box, with its coordinates multiplied by factor
+    TextBox scaled(float factor) {
+        return new TextBox(level, text,
+                Math.round(left * factor), Math.round(top * factor),
+                Math.round(right * factor), Math.round(bottom * factor),
+                block, line, element);
+    }
+
+    // squared distance from (x, y) to the box, 0 if inside
+    long distanceSquared(int x, int y) {
+        long dx = x < left ? left - x : (x > right ? x - right : 0);
+        long dy = y < top ? top - y : (y > bottom ? y - bottom : 0);
+        return dx * dx + dy * dy;
+    }
+
+    // orders boxes as they were in the recognition result
+    static int compareOrder(TextBox a, TextBox b) {
+        if (a.block != b.block) return a.block < b.block ? -1 : 1;
+        if (a.line != b.line) return a.line < b.line ? -1 : 1;
+        if (a.element != b.element) return a.element < b.element ? -1 : 1;
+        return Integer.compare(a.level, b.level);
+    }
+
+    @Override public String toString() {
+        return "[" + left + "," + top + "," + right + "," + bottom + "] " + text;
+    }
+}
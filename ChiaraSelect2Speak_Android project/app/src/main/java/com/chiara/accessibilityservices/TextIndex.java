@@ -0,0 +1,236 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/* Spatial index of the text recognized on a whole screenshot: a uniform grid of CELL_SIZE cells,
+ * each one listing the indices of the boxes that overlap it. Reading a selection becomes a lookup
+ * of the cells under the selection, instead of a new OCR pass on the cropped screenshot. */
+class TextIndex {
+    private static final int CELL_SIZE = 64; // [px]
+
+    private final int columns, rows;
+    private final int[][] cells;      // box indices, per cell
+    private final int[] cell_sizes;   // number of box indices used in each cell
+    private final ArrayList<TextBox> boxes = new ArrayList<>();
+
+    private static final Comparator<TextBox> ORDER = new Comparator<TextBox>() {
+        @Override
+        public int compare(TextBox a, TextBox b) {
+            return TextBox.compareOrder(a, b);
+        }
+    };
+
+    private static final Comparator<TextBox> TOP_LEFT = new Comparator<TextBox>() {
+        @Override
+        public int compare(TextBox a, TextBox b) {
+            if (a.top != b.top) return a.top < b.top ? -1 : 1;
+            return Integer.compare(a.left, b.left);
+        }
+    };
+
+    TextIndex(int width, int height) {
+        columns = Math.max(1, (width + CELL_SIZE - 1) / CELL_SIZE);
+        rows = Math.max(1, (height + CELL_SIZE - 1) / CELL_SIZE);
+        cells = new int[columns * rows][];
+        cell_sizes = new int[columns * rows];
+    }
+
+    void add(TextBox box) {
+        int index = boxes.size();
+        boxes.add(box);
+
+        for (int row = row(box.top); row <= row(box.bottom); row++) {
+            for (int column = column(box.left); column <= column(box.right); column++) {
+                int i = row * columns + column;
+                if (cells[i] == null) {
+                    cells[i] = new int[4];
+                }
+                else if (cell_sizes[i] == cells[i].length) {
+                    cells[i] = Arrays.copyOf(cells[i], 2 * cells[i].length);
+                }
+                cells[i][cell_sizes[i]++] = index;
+            }
+        }
+    }
+
+    int size() {
+        return boxes.size();
+    }
+
+    /* Returns the lines in reading order: blocks from top to bottom (left to right when they start
+     * at the same height), and the lines of each block from top to bottom. */
+    List<TextBox> getLinesInReadingOrder() {
+        final HashMap<Integer, Integer> block_rank = new HashMap<>();
+        List<TextBox> blocks = getBoxes(TextBox.BLOCK);
+        Collections.sort(blocks, TOP_LEFT);
+        for (int i = 0; i < blocks.size(); i++) {
+            block_rank.put(blocks.get(i).block, i);
+        }
+
+        List<TextBox> lines = getBoxes(TextBox.LINE);
+        Collections.sort(lines, new Comparator<TextBox>() {
+            @Override
+            public int compare(TextBox a, TextBox b) {
+                int rank_a = block_rank.containsKey(a.block) ? block_rank.get(a.block) : Integer.MAX_VALUE;
+                int rank_b = block_rank.containsKey(b.block) ? block_rank.get(b.block) : Integer.MAX_VALUE;
+                if (rank_a != rank_b) return rank_a < rank_b ? -1 : 1;
+                if (a.block != b.block) return a.block < b.block ? -1 : 1;
+                return TOP_LEFT.compare(a, b);
+            }
+        });
+        return lines;
+    }
+
+    /* Returns a copy of this index for a width x height bitmap, with the boxes scaled by factor. */
+    TextIndex scaled(float factor, int width, int height) {
+        TextIndex index = new TextIndex(width, height);
+        for (TextBox box : boxes) {
+            index.add(box.scaled(factor));
+        }
+        return index;
+    }
+
+    /* Returns all the boxes of the given level, in recognition order. */
+    List<TextBox> getBoxes(int level) {
+        ArrayList<TextBox> result = new ArrayList<>();
+        for (TextBox box : boxes) {
+            if (box.level == level) result.add(box);
+        }
+
+        Collections.sort(result, ORDER);
+        return result;
+    }
+
+    /* Returns the boxes of the given level intersecting the region, in recognition order. */
+    List<TextBox> query(int left, int top, int right, int bottom, int level) {
+        ArrayList<TextBox> result = new ArrayList<>();
+        BitSet seen = new BitSet(boxes.size());
+
+        for (int row = row(top); row <= row(bottom); row++) {
+            for (int column = column(left); column <= column(right); column++) {
+                int cell = row * columns + column;
+
+                for (int i = 0; i < cell_sizes[cell]; i++) {
+                    int index = cells[cell][i];
+                    if (seen.get(index)) continue;
+                    seen.set(index);
+
+                    TextBox box = boxes.get(index);
+                    if (box.level == level && box.intersects(left, top, right, bottom)) {
+                        result.add(box);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(result, ORDER);
+        return result;
+    }
+
+    /* Returns the text of the words whose center lies inside the region, one string per block,
+     * with line_separator between the lines of a block. */
+    List<String> readRegion(int left, int top, int right, int bottom, String line_separator) {
+        ArrayList<String> blocks = new ArrayList<>();
+        StringBuilder current = null;
+        TextBox previous = null;
+
+        for (TextBox word : query(left, top, right, bottom, TextBox.ELEMENT)) {
+            int x = word.centerX(), y = word.centerY();
+            if (x < left || x >= right || y < top || y >= bottom) continue;
+
+            if (previous == null || word.block != previous.block) {
+                if (current != null) blocks.add(current.toString());
+                current = new StringBuilder(word.text);
+            }
+            else {
+                current.append(word.line != previous.line ? line_separator : " ").append(word.text);
+            }
+            previous = word;
+        }
+        if (current != null) blocks.add(current.toString());
+
+        return blocks;
+    }
+
+    /* Returns the box of the given level nearest to (x, y), not farther than max_distance, or null.
+     * Cells are visited in rings of growing distance around (x, y), until no closer box can be found. */
+    TextBox nearest(int x, int y, int level, int max_distance) {
+        int row0 = row(y), column0 = column(x);
+        int max_ring = max_distance / CELL_SIZE + 1;
+
+        TextBox best = null;
+        long best_distance = (long) max_distance * max_distance;
+        BitSet seen = new BitSet(boxes.size());
+
+        for (int ring = 0; ring <= max_ring; ring++) {
+            // boxes in this ring are at least (ring - 1) cells away
+            long ring_distance = (long) Math.max(0, ring - 1) * CELL_SIZE;
+            if (best != null && ring_distance * ring_distance > best_distance) break;
+
+            for (int row = row0 - ring; row <= row0 + ring; row++) {
+                if (row < 0 || row >= rows) continue;
+
+                for (int column = column0 - ring; column <= column0 + ring; column++) {
+                    if (column < 0 || column >= columns) continue;
+                    if (Math.max(Math.abs(row - row0), Math.abs(column - column0)) != ring) continue;
+
+                    int cell = row * columns + column;
+                    for (int i = 0; i < cell_sizes[cell]; i++) {
+                        int index = cells[cell][i];
+                        if (seen.get(index)) continue;
+                        seen.set(index);
+
+                        TextBox box = boxes.get(index);
+                        if (box.level != level) continue;
+
+                        long distance = box.distanceSquared(x, y);
+                        if (distance <= best_distance && (best == null || distance < best_distance)) {
+                            best = box;
+                            best_distance = distance;
+                        }
+                    }
+                }
+            }
+        }
+
+        return best;
+    }
+
+    /* Returns the block box containing the given line or element box, or null. */
+    TextBox blockOf(TextBox box) {
+        for (int i = 0; i < boxes.size(); i++) {
+            TextBox block = boxes.get(i);
+            if (block.level == TextBox.BLOCK && block.block == box.block) return block;
+        }
+
+        return null;
+    }
+
+    private int column(int x) {
+        return Math.min(columns - 1, Math.max(0, x / CELL_SIZE));
+    }
+
+    private int row(int y) {
+        return Math.min(rows - 1, Math.max(0, y / CELL_SIZE));
+    }
+}
@@ -0,0 +1,563 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Process;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.text.Text;
+import com.google.android.gms.vision.text.TextBlock;
+import com.google.android.gms.vision.text.TextRecognizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* Recognizes text on large bitmaps (a full dialog page, a whole screenshot) as overlapping tiles,
+ * on a pool of threads with one TextRecognizer each, and merges the text of the tiles back into a
+ * single TextIndex.
+ *
+ * Each tile keeps only the words whose center lies in its core, the part of the tile that is not
+ * closer to a neighbouring tile: every word is read once, by the tile that sees it whole (as long
+ * as it is narrower than TILE_OVERLAP). Lines and blocks cut by a tile boundary are joined back
+ * when their fragments are adjacent.
+ * Bitmaps smaller than the tile size are recognized whole, as before. */
+class TiledRecognizer {
+    private static final String DEBUG_TAG = "[Chiara_TiledRecognizer]";
+
+    static final int NO_TILING = 0;
+    static final int DEFAULT_TILE_SIZE = 1024;  // [px]
+    static final int TILE_OVERLAP = 128;        // [px] overlap of adjacent tiles, wider than most words
+    static final int STREAM_ROW_HEIGHT = 384;   // [px] height of the rows of tiles, when lines are streamed
+    private static final long RELEASE_TIMEOUT = 5000; // [ms] wait for the running tiles in release()
+
+    private final BitmapPool bitmap_pool;
+    private final TextRecognizer[] recognizers;
+    private final int workers;
+    private final ExecutorService executor;
+    // recognizers not in use: a recognizer is used by one thread at a time
+    private final LinkedBlockingQueue<TextRecognizer> free_recognizers = new LinkedBlockingQueue<>();
+
+    private volatile int tile_size = DEFAULT_TILE_SIZE;
+
+    /* The recognizers are owned by the TiledRecognizer, and released by release(). */
+    TiledRecognizer(TextRecognizer[] recognizers, BitmapPool bitmap_pool) {
+        this.bitmap_pool = bitmap_pool;
+        this.recognizers = recognizers;
+        this.workers = recognizers.length;
+        Collections.addAll(free_recognizers, recognizers);
+
+        executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private int next_thread = 0;
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "OcrTileThread-" + (next_thread++));
+            }
+        });
+    }
+
+    /* Sets the size of the tiles, NO_TILING recognizes bitmaps whole. */
+    void setTileSize(int tile_size) {
+        this.tile_size = tile_size;
+    }
+
+    int getWorkers() {
+        return workers;
+    }
+
+    /* Stops the tile threads, then releases the recognizers (each holds its own native models).
+     * Called once detect() has returned. */
+    void release() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(RELEASE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                // a recognizer still in use cannot be released
+                Log.w(DEBUG_TAG, "[release] Tiles still running, recognizers not released");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        for (TextRecognizer recognizer : recognizers) {
+            recognizer.release();
+        }
+    }
+
+    /* Recognizes the text of bitmap, and waits for the result. The bitmap is not released. */
+    TextIndex detect(Bitmap bitmap) {
+        return detect(bitmap, null);
+    }
+
+    /* Same as detect(bitmap), but the lines are also given to listener (if not null) in reading
+     * order, a row of tiles at a time: tall bitmaps are split in rows of STREAM_ROW_HEIGHT, and the
+     * lines of the first row are given as soon as it is recognized, while the next rows are still
+     * being recognized. Blocks cut by a row boundary are given as two groups of lines.
+     * When the calling thread is interrupted, the tiles not started yet are skipped, the running
+     * ones are waited for, and the text recognized so far is returned without giving it to
+     * listener. */
+    TextIndex detect(final Bitmap bitmap, OcrEngine.LinesListener listener) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+
+        int row_height = (listener != null && tile_size != NO_TILING) ? Math.min(tile_size, STREAM_ROW_HEIGHT) : tile_size;
+        List<int[]> tiles = computeTiles(width, height, tile_size, row_height, TILE_OVERLAP);
+        if (tiles.size() == 1) {
+            ArrayList<TextBox> boxes = new ArrayList<>();
+            addTextBoxes(boxes, detectWhole(bitmap), 0, 0);
+
+            TextIndex index = new TextIndex(width, height);
+            for (TextBox box : boxes) index.add(box);
+
+            if (listener != null) listener.onLinesReady(index.getLinesInReadingOrder());
+            return index;
+        }
+
+        // recognize the tiles in parallel, top rows first
+        final AtomicBoolean skip_tiles = new AtomicBoolean(false);
+        ArrayList<Future<List<TextBox>>> futures = new ArrayList<>();
+        for (final int[] tile : tiles) {
+            futures.add(executor.submit(new Callable<List<TextBox>>() {
+                @Override
+                public List<TextBox> call() {
+                    if (skip_tiles.get()) return Collections.emptyList();
+                    return detectTile(bitmap, tile);
+                }
+            }));
+        }
+
+        List<List<TextBox>> tile_boxes = collectTiles(tiles, futures, skip_tiles, width, height, listener);
+
+        long trace_start = PipelineTrace.begin();
+        TextIndex merged = mergeTiles(tiles.subList(0, tile_boxes.size()), tile_boxes, width, height);
+        PipelineTrace.end("mergeTiles", trace_start);
+        return merged;
+    }
+
+    /* Waits for the tiles in order, and returns their boxes, giving the lines of each row of
+     * tiles to listener (if not null) once it is complete.
+     * When the calling thread is interrupted, the boxes of the tiles completed before are
+     * returned, after setting skip_tiles (checked by the tiles when they start) and waiting for
+     * the running ones. */
+    static List<List<TextBox>> collectTiles(List<int[]> tiles, List<Future<List<TextBox>>> futures, AtomicBoolean skip_tiles,
+                                            int width, int height, OcrEngine.LinesListener listener) {
+        ArrayList<List<TextBox>> tile_boxes = new ArrayList<>();
+        int row_start = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                cancelTiles(futures.subList(i, futures.size()), skip_tiles);
+                return tile_boxes;
+            }
+
+            List<TextBox> boxes = Collections.emptyList();
+            try {
+                boxes = futures.get(i).get();
+            } catch (ExecutionException e) {
+                Log.e(DEBUG_TAG, "[collectTiles] Tile recognition failed: " + e.getCause());
+            } catch (InterruptedException e) {
+                // tile i may still be running
+                Thread.currentThread().interrupt();
+                cancelTiles(futures.subList(i, futures.size()), skip_tiles);
+                return tile_boxes;
+            }
+            tile_boxes.add(boxes);
+
+            // tiles are listed row by row: give the lines of each row once it is complete
+            boolean row_complete = (i == tiles.size() - 1) || (tiles.get(i + 1)[1] != tiles.get(i)[1]);
+            if (row_complete) {
+                if (listener != null && !Thread.currentThread().isInterrupted()) {
+                    TextIndex row = mergeTiles(tiles.subList(row_start, i + 1), tile_boxes.subList(row_start, i + 1), width, height);
+                    listener.onLinesReady(row.getLinesInReadingOrder());
+                }
+                row_start = i + 1;
+            }
+        }
+
+        return tile_boxes;
+    }
+
+    /* Skips the tiles not started yet, and waits for the running ones: they read bitmap, which the
+     * caller may release as soon as detect() returns. Future.cancel() is not used, as it also
+     * marks running tiles as cancelled, and get() would then return without waiting for them.
+     * The interrupt of the calling thread is kept. */
+    private static void cancelTiles(List<Future<List<TextBox>>> futures, AtomicBoolean skip_tiles) {
+        skip_tiles.set(true);
+
+        boolean interrupted = Thread.interrupted();
+        for (Future<List<TextBox>> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (ExecutionException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /****************************************** Recognition ***************************************/
+    private SparseArray<TextBlock> detectWhole(Bitmap bitmap) {
+        TextRecognizer recognizer;
+        try {
+            recognizer = free_recognizers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        long trace_start = PipelineTrace.begin();
+        try {
+            Frame frame = new Frame.Builder().setBitmap(bitmap).build();
+            return recognizer.detect(frame);
+        } finally {
+            free_recognizers.add(recognizer);
+            PipelineTrace.end("TextRecognizer.detect", trace_start);
+        }
+    }
+
+    // called on a tile thread, returns the boxes of the tile in bitmap coordinates
+    private List<TextBox> detectTile(Bitmap bitmap, int[] tile) {
+        int left = tile[0], top = tile[1];
+        int width = tile[2] - left, height = tile[3] - top;
+
+        // copy the tile into a pooled bitmap, row by row
+        Bitmap tile_bitmap = bitmap_pool.acquireBitmap(width, height);
+        ArrayList<TextBox> boxes = new ArrayList<>();
+        try {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                bitmap.getPixels(row, 0, width, left, top + y, width, 1);
+                tile_bitmap.setPixels(row, 0, width, 0, y, width, 1);
+            }
+
+            addTextBoxes(boxes, detectWhole(tile_bitmap), left, top);
+        } finally {
+            bitmap_pool.releaseBitmap(tile_bitmap);
+        }
+
+        return boxes;
+    }
+
+    /* Adds the blocks, lines and elements of text to boxes, moved by (dx, dy). */
+    static void addTextBoxes(List<TextBox> boxes, SparseArray<TextBlock> text, int dx, int dy) {
+        if (text == null) return;
+        int line_n = 0, element_n = 0;
+
+        for (int b = 0; b < text.size(); b++) {
+            TextBlock block = text.valueAt(b);
+            if (block == null || block.getValue() == null || block.getBoundingBox() == null) continue;
+
+            addTextBox(boxes, TextBox.BLOCK, block, dx, dy, b, -1, -1);
+            for (Text line : block.getComponents()) {
+                addTextBox(boxes, TextBox.LINE, line, dx, dy, b, line_n, -1);
+                for (Text element : line.getComponents()) {
+                    addTextBox(boxes, TextBox.ELEMENT, element, dx, dy, b, line_n, element_n++);
+                }
+                line_n++;
+            }
+        }
+    }
+
+    private static void addTextBox(List<TextBox> boxes, int level, Text text, int dx, int dy, int block, int line, int element) {
+        Rect box = text.getBoundingBox();
+        if (box == null || text.getValue() == null) return;
+
+        boxes.add(new TextBox(level, text.getValue(),
+                box.left + dx, box.top + dy, box.right + dx, box.bottom + dy,
+                block, line, element));
+    }
+
+    /****************************************** Tiles *********************************************/
+    /* Splits a width x height bitmap in overlapping tiles of about tile_size.
+     * Each tile is {left, top, right, bottom, core_left, core_top, core_right, core_bottom}: the
+     * cores of the tiles cover the bitmap without overlapping. Tiles are listed row by row. */
+    static List<int[]> computeTiles(int width, int height, int tile_size, int overlap) {
+        return computeTiles(width, height, tile_size, tile_size, overlap);
+    }
+
+    static List<int[]> computeTiles(int width, int height, int tile_width, int tile_height, int overlap) {
+        int[][] columns = splitAxis(width, tile_width, overlap);
+        int[][] rows = splitAxis(height, tile_height, overlap);
+
+        ArrayList<int[]> tiles = new ArrayList<>();
+        for (int[] row : rows) {
+            for (int[] column : columns) {
+                tiles.add(new int[] {
+                        column[0], row[0], column[1], row[1],
+                        column[2], row[2], column[3], row[3] });
+            }
+        }
+        return tiles;
+    }
+
+    // spans {start, end, core_start, core_end} of length, spaced evenly
+    private static int[][] splitAxis(int length, int tile_size, int overlap) {
+        // not worth splitting: a tile would be mostly overlap
+        if (tile_size <= overlap || length <= tile_size + tile_size / 4) {
+            return new int[][] { { 0, length, 0, length } };
+        }
+
+        int n = (int) Math.ceil((double) (length - overlap) / (tile_size - overlap));
+        int[][] spans = new int[n][4];
+        for (int i = 0; i < n; i++) {
+            spans[i][0] = (int) ((long) i * (length - tile_size) / (n - 1));
+            spans[i][1] = spans[i][0] + tile_size;
+        }
+
+        // cores meet in the middle of the overlaps
+        spans[0][2] = 0;
+        spans[n - 1][3] = length;
+        for (int i = 0; i < n - 1; i++) {
+            int boundary = (spans[i][1] + spans[i + 1][0]) / 2;
+            spans[i][3] = boundary;
+            spans[i + 1][2] = boundary;
+        }
+
+        return spans;
+    }
+
+    /****************************************** Merge *********************************************/
+    // a line or block of a single tile, restricted to the words in the tile core
+    private static class Fragment {
+        final int tile;
+        int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE, right = Integer.MIN_VALUE, bottom = Integer.MIN_VALUE;
+        int word_height = 0;    // height of the tallest word
+        int block = -1;         // for lines: the block fragment
+        final ArrayList<TextBox> words = new ArrayList<>();
+
+        Fragment(int tile) {
+            this.tile = tile;
+        }
+
+        void add(TextBox word) {
+            words.add(word);
+            left = Math.min(left, word.left);
+            top = Math.min(top, word.top);
+            right = Math.max(right, word.right);
+            bottom = Math.max(bottom, word.bottom);
+            word_height = Math.max(word_height, word.bottom - word.top);
+        }
+    }
+
+    private static final Comparator<Fragment> TOP_LEFT = new Comparator<Fragment>() {
+        @Override
+        public int compare(Fragment a, Fragment b) {
+            if (a.top != b.top) return a.top < b.top ? -1 : 1;
+            return Integer.compare(a.left, b.left);
+        }
+    };
+
+    private static final Comparator<TextBox> LEFT = new Comparator<TextBox>() {
+        @Override
+        public int compare(TextBox a, TextBox b) {
+            return Integer.compare(a.left, b.left);
+        }
+    };
+
+    /* Merges the boxes recognized on each tile into a single index of the width x height bitmap. */
+    static TextIndex mergeTiles(List<int[]> tiles, List<List<TextBox>> tile_boxes, int width, int height) {
+        ArrayList<Fragment> lines = new ArrayList<>();
+        ArrayList<Fragment> blocks = new ArrayList<>();
+
+        // keep the words whose center is in the tile core, grouped by line and block of their tile
+        for (int t = 0; t < tiles.size(); t++) {
+            int[] tile = tiles.get(t);
+            HashMap<Integer, Fragment> tile_lines = new HashMap<>();
+            HashMap<Integer, Fragment> tile_blocks = new HashMap<>();
+
+            for (TextBox word : tile_boxes.get(t)) {
+                if (word.level != TextBox.ELEMENT) continue;
+                int x = word.centerX(), y = word.centerY();
+                if (x < tile[4] || x >= tile[6] || y < tile[5] || y >= tile[7]) continue;
+
+                Fragment block = tile_blocks.get(word.block);
+                if (block == null) {
+                    block = new Fragment(t);
+                    block.block = blocks.size();
+                    tile_blocks.put(word.block, block);
+                    blocks.add(block);
+                }
+                Fragment line = tile_lines.get(word.line);
+                if (line == null) {
+                    line = new Fragment(t);
+                    line.block = block.block;
+                    tile_lines.put(word.line, line);
+                    lines.add(line);
+                }
+
+                line.add(word);
+                block.add(word);
+            }
+        }
+
+        int[] line_parent = newSets(lines.size());
+        int[] block_parent = newSets(blocks.size());
+
+        // join the fragments of a line cut by a vertical boundary: side by side, at the same height
+        for (int i = 0; i < lines.size(); i++) {
+            Fragment a = lines.get(i);
+            for (int j = i + 1; j < lines.size(); j++) {
+                Fragment b = lines.get(j);
+                if (a.tile == b.tile) continue;
+
+                int min_height = Math.min(a.bottom - a.top, b.bottom - b.top);
+                int vertical_overlap = Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+                int horizontal_gap = Math.max(a.left, b.left) - Math.min(a.right, b.right);
+
+                if (2 * vertical_overlap >= min_height && horizontal_gap <= min_height) {
+                    union(line_parent, i, j);
+                    union(block_parent, a.block, b.block);
+                }
+            }
+        }
+
+        // join the fragments of a block cut by a horizontal boundary: one above the other, a line apart
+        for (int i = 0; i < blocks.size(); i++) {
+            Fragment a = blocks.get(i);
+            for (int j = i + 1; j < blocks.size(); j++) {
+                Fragment b = blocks.get(j);
+                if (a.tile == b.tile) continue;
+
+                int horizontal_overlap = Math.min(a.right, b.right) - Math.max(a.left, b.left);
+                int vertical_gap = Math.max(a.top, b.top) - Math.min(a.bottom, b.bottom);
+
+                int word_height = Math.max(a.word_height, b.word_height);
+
+                // blocks side by side overlap by more than a line
+                if (horizontal_overlap > 0 && vertical_gap <= word_height && vertical_gap >= -word_height) {
+                    union(block_parent, i, j);
+                }
+            }
+        }
+
+        // merged lines, by merged block
+        HashMap<Integer, Fragment> merged_lines = new HashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            int root = find(line_parent, i);
+            Fragment merged = merged_lines.get(root);
+            if (merged == null) {
+                merged = new Fragment(-1);
+                merged.block = find(block_parent, lines.get(i).block);
+                merged_lines.put(root, merged);
+            }
+            for (TextBox word : lines.get(i).words) merged.add(word);
+        }
+
+        HashMap<Integer, Fragment> merged_blocks = new HashMap<>();
+        HashMap<Integer, ArrayList<Fragment>> block_lines = new HashMap<>();
+        for (Fragment line : merged_lines.values()) {
+            Fragment merged = merged_blocks.get(line.block);
+            if (merged == null) {
+                merged = new Fragment(-1);
+                merged_blocks.put(line.block, merged);
+                block_lines.put(line.block, new ArrayList<Fragment>());
+            }
+            for (TextBox word : line.words) merged.add(word);
+            block_lines.get(line.block).add(line);
+        }
+
+        // rebuild the index in reading order: blocks and their lines top to bottom, words left to right
+        ArrayList<Integer> block_order = new ArrayList<>(merged_blocks.keySet());
+        final HashMap<Integer, Fragment> blocks_by_root = merged_blocks;
+        Collections.sort(block_order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return TOP_LEFT.compare(blocks_by_root.get(a), blocks_by_root.get(b));
+            }
+        });
+
+        TextIndex index = new TextIndex(width, height);
+        int block_n = 0, line_n = 0, element_n = 0;
+
+        for (Integer root : block_order) {
+            Fragment block = merged_blocks.get(root);
+            ArrayList<Fragment> block_line_list = block_lines.get(root);
+            Collections.sort(block_line_list, TOP_LEFT);
+
+            StringBuilder block_text = new StringBuilder();
+            for (Fragment line : block_line_list) {
+                Collections.sort(line.words, LEFT);
+
+                StringBuilder line_text = new StringBuilder();
+                for (TextBox word : line.words) {
+                    if (line_text.length() > 0) line_text.append(' ');
+                    line_text.append(word.text);
+
+                    index.add(new TextBox(TextBox.ELEMENT, word.text, word.left, word.top, word.right, word.bottom,
+                            block_n, line_n, element_n++));
+                }
+
+                index.add(new TextBox(TextBox.LINE, line_text.toString(), line.left, line.top, line.right, line.bottom,
+                        block_n, line_n, -1));
+                line_n++;
+
+                if (block_text.length() > 0) block_text.append('\n');
+                block_text.append(line_text);
+            }
+
+            index.add(new TextBox(TextBox.BLOCK, block_text.toString(), block.left, block.top, block.right, block.bottom,
+                    block_n, -1, -1));
+            block_n++;
+        }
+
+        return index;
+    }
+
+    // union-find over fragment indices
+    private static int[] newSets(int size) {
+        int[] parent = new int[size];
+        for (int i = 0; i < size; i++) parent[i] = i;
+        return parent;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        parent[find(parent, a)] = find(parent, b);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* OcrEngine on the Google Play Services TextRecognizer: bitmaps are preprocessed by
+ * ocr_preprocessor (if any), then recognized, as tiles when large, by tiled_recognizer.
+ * A downscaled bitmap on which no text is found is recognized again at full scale: the text may
+ * just be smaller than the previous one. */
+class VisionOcrEngine implements OcrEngine {
+    private final TiledRecognizer tiled_recognizer;
+    private final OcrPreprocessor ocr_preprocessor; // may be null
+    private final BitmapPool bitmap_pool;
+
+    private int[] row = new int[0];
+
+    VisionOcrEngine(TiledRecognizer tiled_recognizer, OcrPreprocessor ocr_preprocessor, BitmapPool bitmap_pool) {
+        this.tiled_recognizer = tiled_recognizer;
+        this.ocr_preprocessor = ocr_preprocessor;
+        this.bitmap_pool = bitmap_pool;
+    }
+
+    @Override public TextIndex recognize(OcrImage image) {
+        return recognize(image, null);
+    }
+
+    @Override public TextIndex recognize(OcrImage image, LinesListener listener) {
+        if (image instanceof BitmapImage) return recognize(((BitmapImage) image).bitmap, listener);
+
+        // other images are copied into a bitmap first
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (row.length < width) row = new int[width];
+
+        Bitmap bitmap = bitmap_pool.acquireBitmap(width, height);
+        try {
+            for (int y = 0; y < height; y++) {
+                image.getRow(y, row);
+                bitmap.setPixels(row, 0, width, 0, y, width, 1);
+            }
+            return recognize(bitmap, listener);
+        } finally {
+            bitmap_pool.releaseBitmap(bitmap);
+        }
+    }
+
+    @Override public String getName() {
+        return "Play Services TextRecognizer (" + tiled_recognizer.getWorkers() + " workers)";
+    }
+
+    @Override public void release() {
+        tiled_recognizer.release();
+    }
+
+    // preprocesses bitmap if needed, and recognizes it; the boxes are in bitmap coordinates
+    private TextIndex recognize(Bitmap bitmap, LinesListener listener) {
+        if (ocr_preprocessor == null) return tiled_recognizer.detect(bitmap, listener);
+
+        // selections are streamed to a listener, whole screenshots are not
+        int kind = (listener != null) ? OcrPreprocessor.SELECTION : OcrPreprocessor.SCREEN;
+        float scale = ocr_preprocessor.getScale(kind, bitmap.getWidth(), bitmap.getHeight());
+
+        TextIndex text = recognize(bitmap, scale, listener);
+        if (scale != 1 && text.getBoxes(TextBox.LINE).isEmpty() && !Thread.currentThread().isInterrupted()) {
+            text = recognize(bitmap, 1, listener);
+        }
+
+        ocr_preprocessor.updateTextHeight(kind, text);
+        return text;
+    }
+
+    private TextIndex recognize(Bitmap bitmap, final float scale, final LinesListener listener) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+
+        // lines are given back in bitmap coordinates
+        LinesListener scaled_listener = listener;
+        if (listener != null && scale != 1) {
+            scaled_listener = new LinesListener() {
+                @Override
+                public void onLinesReady(List<TextBox> lines) {
+                    ArrayList<TextBox> scaled = new ArrayList<>(lines.size());
+                    for (TextBox line : lines) scaled.add(line.scaled(1 / scale));
+                    listener.onLinesReady(scaled);
+                }
+            };
+        }
+
+        long trace_start = PipelineTrace.begin();
+        Bitmap processed = ocr_preprocessor.process(bitmap, scale);
+        PipelineTrace.end("preprocess", trace_start);
+        TextIndex text;
+        try {
+            text = tiled_recognizer.detect(processed, scaled_listener);
+        } finally {
+            bitmap_pool.releaseBitmap(processed);
+        }
+
+        if (scale != 1) text = text.scaled(1 / scale, width, height);
+        return text;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/* Deterministic stand-in for a text recognizer, to run and benchmark the pipeline on a plain JVM.
+ * The screen is a script of words (ELEMENT boxes, with their block and line ordinals), rendered by
+ * render() as rectangles filled with a colour that encodes the index of the word. recognize() reads
+ * back the words whose colour covers at least half of their box in the image, and groups them in
+ * lines and blocks as in the script.
+ * Optionally, it also waits ms_per_megapixel, to stand in for the cost of a real engine. */
+class FakeOcrEngine implements OcrEngine {
+    static final int BACKGROUND = 0xffffffff;
+
+    private final List<TextBox> script;
+    private final float ms_per_megapixel;
+
+    private int[] row = new int[0];
+
+    FakeOcrEngine(List<TextBox> script, float ms_per_megapixel) {
+        this.script = script;
+        this.ms_per_megapixel = ms_per_megapixel;
+    }
+
+    /* Draws the words of script on a BACKGROUND image. */
+    static IntArrayImage render(int width, int height, List<TextBox> script) {
+        IntArrayImage image = new IntArrayImage(width, height);
+        image.fill(0, 0, width, height, BACKGROUND);
+
+        for (int i = 0; i < script.size(); i++) {
+            TextBox word = script.get(i);
+            image.fill(word.left, word.top, word.right, word.bottom, 0xff000000 | (i + 1));
+        }
+        return image;
+    }
+
+    @Override public TextIndex recognize(OcrImage image, LinesListener listener) {
+        TextIndex text = recognize(image);
+        if (listener != null) listener.onLinesReady(text.getLinesInReadingOrder());
+        return text;
+    }
+
+    @Override public TextIndex recognize(OcrImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (row.length < width) row = new int[width];
+
+        int n = script.size();
+        int[] pixels = new int[n];
+        int[] left = new int[n], top = new int[n], right = new int[n], bottom = new int[n];
+
+        // bounding box of the visible pixels of each word
+        for (int y = 0; y < height; y++) {
+            image.getRow(y, row);
+            for (int x = 0; x < width; x++) {
+                int pixel = row[x];
+                int i = (pixel & 0xffffff) - 1;
+                if ((pixel >>> 24) != 0xff || i < 0 || i >= n) continue;
+
+                if (pixels[i]++ == 0) {
+                    left[i] = x;
+                    top[i] = y;
+                    right[i] = x + 1;
+                    bottom[i] = y + 1;
+                }
+                else {
+                    left[i] = Math.min(left[i], x);
+                    right[i] = Math.max(right[i], x + 1);
+                    bottom[i] = y + 1;
+                }
+            }
+        }
+
+        // words mostly visible, grouped by line and block
+        TextIndex index = new TextIndex(width, height);
+        LinkedHashMap<Integer, TextBox> lines = new LinkedHashMap<>();
+        LinkedHashMap<Integer, TextBox> blocks = new LinkedHashMap<>();
+
+        for (int i = 0; i < n; i++) {
+            TextBox word = script.get(i);
+            long area = (long) (word.right - word.left) * (word.bottom - word.top);
+            if (pixels[i] == 0 || 2L * pixels[i] < area) continue;
+
+            index.add(new TextBox(TextBox.ELEMENT, word.text, left[i], top[i], right[i], bottom[i],
+                    word.block, word.line, word.element));
+            lines.put(word.line, join(lines.get(word.line), TextBox.LINE, " ",
+                    word.text, left[i], top[i], right[i], bottom[i], word.block, word.line));
+            blocks.put(word.block, null);
+        }
+        for (TextBox line : lines.values()) {
+            index.add(line);
+            blocks.put(line.block, join(blocks.get(line.block), TextBox.BLOCK, "\n",
+                    line.text, line.left, line.top, line.right, line.bottom, line.block, -1));
+        }
+        for (TextBox block : blocks.values()) {
+            index.add(block);
+        }
+
+        simulateLatency(width, height);
+        return index;
+    }
+
+    @Override public String getName() {
+        return "Fake OCR (" + ms_per_megapixel + " ms/MP)";
+    }
+
+    @Override public void release() { }
+
+    // box grown to include (text, left, top, right, bottom)
+    private static TextBox join(TextBox box, int level, String separator, String text,
+                                int left, int top, int right, int bottom, int block, int line) {
+        if (box == null) return new TextBox(level, text, left, top, right, bottom, block, line, -1);
+
+        return new TextBox(level, box.text + separator + text,
+                Math.min(box.left, left), Math.min(box.top, top),
+                Math.max(box.right, right), Math.max(box.bottom, bottom),
+                block, line, -1);
+    }
+
+    private void simulateLatency(int width, int height) {
+        long ms = Math.round(ms_per_megapixel * width * height / 1000000.0);
+        if (ms <= 0) return;
+
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
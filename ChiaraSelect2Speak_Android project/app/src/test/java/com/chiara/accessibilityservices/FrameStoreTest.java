@@ -0,0 +1,100 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+/* The frame file format, through the mapped buffers that write() and read() copy pixels to and from. */
+public class FrameStoreTest {
+    private File directory;
+    private File file;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("framestore").toFile();
+        file = new File(directory, "1" + FrameStore.EXTENSION);
+    }
+
+    @After
+    public void deleteDirectory() {
+        file.delete();
+        directory.delete();
+    }
+
+    private void writeFrame(int width, int height) throws IOException {
+        MappedByteBuffer mapped = FrameStore.create(file, width, height);
+        for (int i = 0; i < width * height * 4; i++) mapped.put((byte) i);
+        mapped.force();
+    }
+
+    @Test
+    public void pixelsAreReadBack() throws IOException {
+        writeFrame(3, 2);
+
+        MappedByteBuffer mapped = FrameStore.open(file);
+        assertEquals(3, FrameStore.getWidth(mapped));
+        assertEquals(2, FrameStore.getHeight(mapped));
+        assertEquals(3 * 2 * 4, mapped.remaining());
+        for (int i = 0; i < 3 * 2 * 4; i++) assertEquals((byte) i, mapped.get());
+    }
+
+    @Test
+    public void createReplacesALargerFrame() throws IOException {
+        writeFrame(100, 100);
+        writeFrame(2, 1);
+
+        assertEquals(6 * 4 + 2 * 4, file.length());
+        assertEquals(2, FrameStore.getWidth(FrameStore.open(file)));
+    }
+
+    @Test(expected = IOException.class)
+    public void badMagicIsRejected() throws IOException {
+        writeFrame(3, 2);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(0);
+        }
+
+        FrameStore.open(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFrameIsRejected() throws IOException {
+        writeFrame(3, 2);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        FrameStore.open(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void fileShorterThanTheHeaderIsRejected() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(10);
+        }
+
+        FrameStore.open(file);
+    }
+}
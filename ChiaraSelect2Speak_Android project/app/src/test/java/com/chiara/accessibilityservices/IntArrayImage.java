@@ -0,0 +1,71 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.util.Arrays;
+
+/* An OcrImage held in an int array, row by row, without padding. */
+class IntArrayImage implements OcrImage {
+    final int[] pixels;
+    private final int width, height;
+
+    IntArrayImage(int width, int height) {
+        this(new int[width * height], width, height);
+    }
+
+    IntArrayImage(int[] pixels, int width, int height) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override public int getWidth() {
+        return width;
+    }
+
+    @Override public int getHeight() {
+        return height;
+    }
+
+    @Override public void getRow(int y, int[] row) {
+        System.arraycopy(pixels, y * width, row, 0, width);
+    }
+
+    void fill(int left, int top, int right, int bottom, int color) {
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(width, right);
+        bottom = Math.min(height, bottom);
+
+        for (int y = top; y < bottom; y++) {
+            Arrays.fill(pixels, y * width + left, y * width + right, color);
+        }
+    }
+
+    /* Copies the region out of this image, clipped to it; returns null if the region is empty. */
+    IntArrayImage crop(int left, int top, int right, int bottom) {
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(width, right);
+        bottom = Math.min(height, bottom);
+        if (right <= left || bottom <= top) return null;
+
+        IntArrayImage crop = new IntArrayImage(right - left, bottom - top);
+        for (int y = top; y < bottom; y++) {
+            System.arraycopy(pixels, y * width + left, crop.pixels, (y - top) * crop.width, crop.width);
+        }
+        return crop;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LanguageDetectorTest {
+    private static final Locale FRENCH = Locale.FRENCH;
+
+    private final LanguageDetector detector = new LanguageDetector(new Locale[] { Locale.ITALIAN, Locale.ENGLISH, FRENCH });
+
+    @Test
+    public void detectsTheLanguageOfASentence() {
+        assertEquals(Locale.ITALIAN, detector.detect("Attenzione, il drago ha distrutto il ponte del villaggio"));
+        assertEquals(Locale.ENGLISH, detector.detect("Watch out, the dragon has destroyed the bridge of the village"));
+        assertEquals(FRENCH, detector.detect("Attention, le dragon a d\u00e9truit le pont du village"));
+    }
+
+    @Test
+    public void detectsShortMenuTexts() {
+        assertEquals(Locale.ITALIAN, detector.detect("Salva la partita"));
+        assertEquals(Locale.ENGLISH, detector.detect("Save the game"));
+        assertEquals(FRENCH, detector.detect("Sauvegarder la partie"));
+    }
+
+    @Test
+    public void shortTextsAreNotDetected() {
+        assertNull(detector.detect("OK"));
+        assertNull(detector.detect("3/10"));
+        assertNull(detector.detect(""));
+    }
+
+    @Test
+    public void singleLanguageIsAlwaysDetected() {
+        LanguageDetector italian = new LanguageDetector(new Locale[] { Locale.ITALIAN });
+
+        assertEquals(Locale.ITALIAN, italian.detect("Save the game"));
+        assertEquals(Locale.ITALIAN, italian.detect("OK"));
+    }
+
+    @Test
+    public void unsupportedLanguagesAreIgnored() {
+        assertTrue(LanguageDetector.isSupported(Locale.ITALIAN));
+        assertTrue(LanguageDetector.isSupported(Locale.UK));
+        assertFalse(LanguageDetector.isSupported(Locale.GERMAN));
+
+        LanguageDetector detector = new LanguageDetector(new Locale[] { Locale.GERMAN, Locale.ENGLISH });
+        assertEquals(Locale.ENGLISH, detector.detect("Speichern und beenden"));
+    }
+}
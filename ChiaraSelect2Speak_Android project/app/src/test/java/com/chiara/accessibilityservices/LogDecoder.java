@@ -0,0 +1,109 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+
+/* Turns LogStore segments back into text, one record per line:
+ *   yyyy.MM.dd HH:mm:ss.SSS I/tag: message
+ * A segment cut by a crash is decoded up to its last complete record.
+ *
+ * It only depends on plain Java classes, run it from this directory with:
+ *   M=../../../../../main/java/com/chiara/accessibilityservices; javac -d /tmp/log LogDecoder.java $M/LogStore.java
+ *   java -cp /tmp/log com.chiara.accessibilityservices.LogDecoder <segment or log directory>...
+ * (pull the log directory first, e.g. adb pull <external files dir>/logs) */
+class LogDecoder {
+    private static final String LEVELS = "??VDIWEA"; // by android.util.Log priority
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: LogDecoder <segment or log directory>...");
+            System.exit(1);
+        }
+
+        for (String arg : args) {
+            File file = new File(arg);
+            if (file.isDirectory()) {
+                for (File segment : LogStore.segmentFiles(file)) decode(segment, System.out);
+            }
+            else {
+                decode(file, System.out);
+            }
+        }
+    }
+
+    static void decode(File segment, PrintStream out) throws IOException {
+        SimpleDateFormat date_format = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss.SSS");
+        Date date = new Date();
+        HashMap<Integer, String> tags = new HashMap<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            if (in.readInt() != LogStore.MAGIC) throw new IOException(segment + " is not a log segment");
+            int version = in.readUnsignedByte();
+            if (version != LogStore.VERSION) throw new IOException(segment + ": unknown version " + version);
+            long time = in.readLong();
+
+            while (true) {
+                int type = in.read();
+                if (type < 0) break;
+
+                if (type == LogStore.RECORD_TAG) {
+                    int id = (int) readVarint(in);
+                    tags.put(id, readString(in));
+                }
+                else if (type == LogStore.RECORD_LOG) {
+                    int level = in.readUnsignedByte();
+                    String tag = tags.get((int) readVarint(in));
+                    time += readVarint(in);
+                    String message = readString(in);
+
+                    date.setTime(time);
+                    out.println(date_format.format(date) + " " + (level < LEVELS.length() ? LEVELS.charAt(level) : '?')
+                            + "/" + tag + ": " + message);
+                }
+                else {
+                    throw new IOException(segment + ": unknown record type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            out.println("--- " + segment.getName() + " truncated");
+        }
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("varint too long");
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.readFully(bytes);
+        return new String(bytes, LogStore.UTF_8);
+    }
+}
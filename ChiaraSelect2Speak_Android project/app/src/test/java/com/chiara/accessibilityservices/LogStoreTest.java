@@ -0,0 +1,176 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/* LogStore segments decoded back by LogDecoder. */
+public class LogStoreTest {
+    private static final int INFO = 4, WARN = 5; // android.util.Log priorities
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("logstore").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    // the decoded lines of all the segments, without their date
+    private List<String> decodeAll() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, "UTF-8");
+        for (File segment : LogStore.segmentFiles(directory)) {
+            LogDecoder.decode(segment, out);
+        }
+
+        ArrayList<String> lines = new ArrayList<>();
+        for (String line : new String(bytes.toByteArray(), "UTF-8").split("\n")) {
+            if (line.isEmpty()) continue;
+            lines.add(line.startsWith("---") ? line : line.substring(line.indexOf(' ', line.indexOf(' ') + 1) + 1));
+        }
+        return lines;
+    }
+
+    @Test
+    public void recordsAreDecodedBack() throws IOException {
+        LogStore store = new LogStore(directory, 64 * 1024, 60 * 60 * 1000, 1024 * 1024);
+        long now = System.nanoTime();
+        store.append(now, INFO, "[Chiara_MainService]", "[onServiceConnected] Ready");
+        store.append(now + 5000000L, WARN, "[Chiara_OcrWorker]", "[processNext] Recognition failed");
+        store.append(now + 9000000L, INFO, "[Chiara_MainService]", "Perch\u00e9 \u00e8 gi\u00e0 finito?");
+        store.close();
+
+        List<String> lines = decodeAll();
+        assertEquals(3, lines.size());
+        assertEquals("I/[Chiara_MainService]: [onServiceConnected] Ready", lines.get(0));
+        assertEquals("W/[Chiara_OcrWorker]: [processNext] Recognition failed", lines.get(1));
+        assertEquals("I/[Chiara_MainService]: Perch\u00e9 \u00e8 gi\u00e0 finito?", lines.get(2));
+    }
+
+    @Test
+    public void truncatedSegmentIsDecodedUpToItsLastRecord() throws IOException {
+        LogStore store = new LogStore(directory, 64 * 1024, 60 * 60 * 1000, 1024 * 1024);
+        long now = System.nanoTime();
+        store.append(now, INFO, "tag", "first");
+        store.append(now, INFO, "tag", "second");
+        store.close();
+
+        File segment = LogStore.segmentFiles(directory)[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        List<String> lines = decodeAll();
+        assertEquals(2, lines.size());
+        assertEquals("I/tag: first", lines.get(0));
+        assertEquals("--- " + segment.getName() + " truncated", lines.get(1));
+    }
+
+    @Test
+    public void segmentsRotateBySize() throws IOException {
+        LogStore store = new LogStore(directory, 200, 60 * 60 * 1000, 1024 * 1024);
+        long now = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            store.append(now, INFO, "tag", "message " + i);
+        }
+        store.close();
+
+        File[] segments = LogStore.segmentFiles(directory);
+        assertTrue(segments.length > 1);
+        assertEquals("00000000" + LogStore.EXTENSION, segments[0].getName());
+
+        // each segment interns its own tags
+        List<String> lines = decodeAll();
+        assertEquals(50, lines.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("I/tag: message " + i, lines.get(i));
+        }
+    }
+
+    @Test
+    public void segmentsRotateByAge() throws IOException {
+        LogStore store = new LogStore(directory, 64 * 1024, 1000, 1024 * 1024);
+        long now = System.nanoTime();
+        store.append(now, INFO, "tag", "now");
+        store.append(now + 2000000000L, INFO, "tag", "two seconds later");
+        store.close();
+
+        assertEquals(2, LogStore.segmentFiles(directory).length);
+    }
+
+    @Test
+    public void oldestSegmentsAreDeletedOverBudget() throws IOException {
+        LogStore store = new LogStore(directory, 200, 60 * 60 * 1000, 1000);
+        long now = System.nanoTime();
+        for (int i = 0; i < 500; i++) {
+            store.append(now, INFO, "tag", "message " + i);
+        }
+        store.close();
+
+        File[] segments = LogStore.segmentFiles(directory);
+        long total = 0;
+        for (File segment : segments) total += segment.length();
+
+        // a segment can end one record past max_segment_bytes
+        assertTrue("total " + total, total <= 1000 + 200);
+        assertFalse(new File(directory, "00000000" + LogStore.EXTENSION).exists());
+
+        List<String> lines = decodeAll();
+        assertEquals("I/tag: message 499", lines.get(lines.size() - 1));
+    }
+
+    @Test
+    public void reopenedStoreContinuesTheSequence() throws IOException {
+        LogStore store = new LogStore(directory, 64 * 1024, 60 * 60 * 1000, 1024 * 1024);
+        store.append(System.nanoTime(), INFO, "tag", "before");
+        store.close();
+
+        store = new LogStore(directory, 64 * 1024, 60 * 60 * 1000, 1024 * 1024);
+        store.append(System.nanoTime(), INFO, "tag", "after");
+        store.close();
+
+        File[] segments = LogStore.segmentFiles(directory);
+        assertEquals(2, segments.length);
+        assertEquals("00000001" + LogStore.EXTENSION, segments[1].getName());
+
+        List<String> lines = decodeAll();
+        assertEquals("I/tag: before", lines.get(0));
+        assertEquals("I/tag: after", lines.get(1));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class OcrCacheTest {
+    private static final int WIDTH = 600, HEIGHT = 200;
+
+    // a dialog of random words, dark on a light background
+    private static IntArrayImage dialog(long seed) {
+        Random random = new Random(seed);
+        ArrayList<TextBox> script = new ArrayList<>();
+        for (int y = 20; y + 30 <= HEIGHT; y += 45) {
+            for (int x = 20; ; ) {
+                int width = 30 + random.nextInt(90);
+                if (x + width > WIDTH - 20) break;
+                script.add(new TextBox(TextBox.ELEMENT, "w", x, y, x + width, y + 30, 0, y, script.size()));
+                x += width + 15 + random.nextInt(20);
+            }
+        }
+        return FakeOcrEngine.render(WIDTH, HEIGHT, script);
+    }
+
+    private static IntArrayImage withNoise(IntArrayImage image, int amplitude) {
+        Random random = new Random(1);
+        IntArrayImage noisy = image.crop(0, 0, image.getWidth(), image.getHeight());
+        for (int i = 0; i < noisy.pixels.length; i++) {
+            int gray = ((noisy.pixels[i] >> 8) & 0xff) + random.nextInt(2 * amplitude + 1) - amplitude;
+            gray = Math.max(0, Math.min(255, gray));
+            noisy.pixels[i] = 0xff000000 | (gray << 16) | (gray << 8) | gray;
+        }
+        return noisy;
+    }
+
+    private static TextIndex text() {
+        return new TextIndex(WIDTH, HEIGHT);
+    }
+
+    @Test
+    public void sameSelectionHits() {
+        OcrCache cache = new OcrCache(64 * 1024);
+        IntArrayImage screen = dialog(1);
+        TextIndex text = text();
+        cache.put(cache.key(screen), text, 100);
+
+        assertSame(text, cache.get(cache.key(screen)));
+    }
+
+    @Test
+    public void shiftedOrNoisySelectionHits() {
+        OcrCache cache = new OcrCache(64 * 1024);
+        IntArrayImage screen = dialog(1);
+        TextIndex text = text();
+        cache.put(cache.key(screen.crop(10, 10, WIDTH - 10, HEIGHT - 10)), text, 100);
+
+        // the same dialog, selected again by hand
+        assertSame(text, cache.get(cache.key(screen.crop(11, 9, WIDTH - 8, HEIGHT - 11))));
+        assertSame(text, cache.get(cache.key(screen.crop(6, 12, WIDTH - 14, HEIGHT - 7))));
+        assertSame(text, cache.get(cache.key(withNoise(screen, 12).crop(10, 10, WIDTH - 10, HEIGHT - 10))));
+    }
+
+    @Test
+    public void otherContentMisses() {
+        OcrCache cache = new OcrCache(64 * 1024);
+        cache.put(cache.key(dialog(1)), text(), 100);
+
+        assertNull(cache.get(cache.key(dialog(2))));
+        // the same dialog, with the selection much smaller
+        assertNull(cache.get(cache.key(dialog(1).crop(0, 0, WIDTH / 2, HEIGHT))));
+    }
+
+    @Test
+    public void matchingCropReplacesTheEntry() {
+        OcrCache cache = new OcrCache(64 * 1024);
+        IntArrayImage screen = dialog(1);
+        TextIndex first = text(), second = text();
+        cache.put(cache.key(screen), first, 100);
+        cache.put(cache.key(screen.crop(1, 1, WIDTH, HEIGHT)), second, 100);
+
+        assertSame(second, cache.get(cache.key(screen)));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        List<TextBox> words = new ArrayList<>();
+        for (int i = 0; i < 10; i++) words.add(new TextBox(TextBox.ELEMENT, "parola", 0, 0, 10, 10, 0, 0, i));
+        TextIndex[] texts = new TextIndex[3];
+        for (int t = 0; t < 3; t++) {
+            texts[t] = text();
+            for (TextBox word : words) texts[t].add(word);
+        }
+
+        // room for two texts of 10 words
+        OcrCache cache = new OcrCache(2 * 10 * (96 + 2 * 6));
+        OcrCache.Key a = cache.key(dialog(1)), b = cache.key(dialog(2)), c = cache.key(dialog(3));
+        cache.put(a, texts[0], 100);
+        cache.put(b, texts[1], 100);
+        cache.get(a);
+        cache.put(c, texts[2], 100);
+
+        assertSame(texts[0], cache.get(a));
+        assertNull(cache.get(b));
+        assertSame(texts[2], cache.get(c));
+    }
+}
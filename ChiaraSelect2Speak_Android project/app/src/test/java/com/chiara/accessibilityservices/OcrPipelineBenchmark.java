@@ -0,0 +1,118 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/* Benchmark of the selection pipeline (crop, OCR, text to utterances, and time to the first lines
+ * of text) on a plain JVM, with
+ * FakeOcrEngine standing in for the recognizer: a synthetic screen of paragraphs is generated,
+ * and random selections are read out of it. The screen and the selections are seeded, so runs
+ * are comparable.
+ *
+ * It only depends on plain Java classes, run it from this directory with:
+ *   M=../../../../../main/java/com/chiara/accessibilityservices
+ *   javac -d /tmp/ocr OcrPipelineBenchmark.java TextLayout.java FakeOcrEngine.java IntArrayImage.java \
+ *       $M/OcrEngine.java $M/OcrImage.java $M/TextIndex.java $M/TextBox.java $M/TextBatcher.java
+ *   java -cp /tmp/ocr com.chiara.accessibilityservices.OcrPipelineBenchmark [selections] [ms per megapixel] */
+class OcrPipelineBenchmark {
+    private static final int SCREEN_WIDTH = 1080, SCREEN_HEIGHT = 1920;
+    private static final long SEED = 2020;
+    private static final int MAX_SPEECH_INPUT = 4000; // TextToSpeech.getMaxSpeechInputLength()
+    private static final TextBatcher TEXT_BATCHER = new TextBatcher(MAX_SPEECH_INPUT, TextBatcher.DEFAULT_BATCH_CHARS);
+
+    private static final String[] WORDS = {
+            "gioca", "continua", "opzioni", "esci", "livello", "la", "di", "il", "tesoro", "castello",
+            "attenzione", "premi", "per", "salvare", "partita", "nuova", "missione", "completata", "un", "drago" };
+
+    public static void main(String[] args) {
+        int selections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        float ms_per_megapixel = args.length > 1 ? Float.parseFloat(args[1]) : 0;
+
+        Random random = new Random(SEED);
+        List<TextBox> script = TextLayout.paragraphs(random, SCREEN_WIDTH, SCREEN_HEIGHT, WORDS);
+        IntArrayImage screen = FakeOcrEngine.render(SCREEN_WIDTH, SCREEN_HEIGHT, script);
+        OcrEngine engine = new FakeOcrEngine(script, ms_per_megapixel);
+
+        long[] crop_ns = new long[selections], ocr_ns = new long[selections], speech_ns = new long[selections];
+        long[] first_text_ns = new long[selections];
+        final long[] first_lines_time = new long[1];
+        OcrEngine.LinesListener listener = new OcrEngine.LinesListener() {
+            @Override
+            public void onLinesReady(List<TextBox> lines) {
+                if (first_lines_time[0] == 0) first_lines_time[0] = System.nanoTime();
+            }
+        };
+        int words_read = 0, utterances = 0, empty = 0;
+
+        for (int i = 0; i < selections; i++) {
+            int width = 200 + random.nextInt(SCREEN_WIDTH - 200);
+            int height = 60 + random.nextInt(600);
+            int left = random.nextInt(SCREEN_WIDTH - width + 1);
+            int top = random.nextInt(SCREEN_HEIGHT - height + 1);
+
+            long t0 = System.nanoTime();
+            IntArrayImage crop = screen.crop(left, top, left + width, top + height);
+            long t1 = System.nanoTime();
+            first_lines_time[0] = 0;
+            TextIndex text = engine.recognize(crop, listener);
+            long t2 = System.nanoTime();
+            List<String> spoken = toUtterances(text);
+            long t3 = System.nanoTime();
+
+            crop_ns[i] = t1 - t0;
+            ocr_ns[i] = t2 - t1;
+            speech_ns[i] = t3 - t2;
+            first_text_ns[i] = (first_lines_time[0] != 0 ? first_lines_time[0] : t2) - t0;
+
+            words_read += text.getBoxes(TextBox.ELEMENT).size();
+            utterances += spoken.size();
+            if (spoken.isEmpty()) empty++;
+        }
+
+        System.out.println(engine.getName() + ", " + SCREEN_WIDTH + "x" + SCREEN_HEIGHT + " screen, "
+                + script.size() + " words, " + selections + " selections");
+        System.out.println("  crop:       " + percentiles(crop_ns));
+        System.out.println("  ocr:        " + percentiles(ocr_ns));
+        System.out.println("  utterances: " + percentiles(speech_ns));
+        long[] total_ns = new long[selections];
+        for (int i = 0; i < selections; i++) total_ns[i] = crop_ns[i] + ocr_ns[i] + speech_ns[i];
+        System.out.println("  total:      " + percentiles(total_ns));
+        System.out.println("  first text: " + percentiles(first_text_ns));
+        System.out.println("  " + words_read + " words read, " + utterances + " utterances, " + empty + " selections without text");
+
+        engine.release();
+    }
+
+    /* Utterances for the text of a selection, one per block, as MainService.textToSpeech(). */
+    static List<String> toUtterances(TextIndex text) {
+        ArrayList<String> blocks = new ArrayList<>();
+        for (TextBox block : text.getBoxes(TextBox.BLOCK)) {
+            blocks.add(block.text.replace("\n", " "));
+        }
+        return TEXT_BATCHER.batch(blocks);
+    }
+
+    private static String percentiles(long[] ns) {
+        long[] sorted = Arrays.copyOf(ns, ns.length);
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "p50 %.3f ms, p95 %.3f ms, max %.3f ms",
+                sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 95 / 100] / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+}
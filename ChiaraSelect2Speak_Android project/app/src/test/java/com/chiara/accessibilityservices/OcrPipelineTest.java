@@ -0,0 +1,152 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/* The selection pipeline on a plain JVM: a screen rendered from a script of words, cropped,
+ * recognized by FakeOcrEngine into a TextIndex, and turned into utterances by TextBatcher. */
+public class OcrPipelineTest {
+    private static final int WIDTH = 400, HEIGHT = 320;
+
+    // two blocks: "premi per / continuare" and "nuova partita"
+    private static final List<TextBox> SCRIPT = Arrays.asList(
+            word("premi",      60,  60, 150, 100, 0, 0, 0),
+            word("per",        166, 60, 220, 100, 0, 0, 1),
+            word("continuare", 60, 112, 240, 152, 0, 1, 2),
+            word("nuova",      60, 240, 150, 280, 1, 2, 3),
+            word("partita",   166, 240, 292, 280, 1, 2, 4));
+
+    private static TextBox word(String text, int left, int top, int right, int bottom, int block, int line, int element) {
+        return new TextBox(TextBox.ELEMENT, text, left, top, right, bottom, block, line, element);
+    }
+
+    private static List<String> texts(List<TextBox> boxes) {
+        ArrayList<String> texts = new ArrayList<>();
+        for (TextBox box : boxes) texts.add(box.text);
+        return texts;
+    }
+
+    private static TextIndex recognizeScreen() {
+        IntArrayImage screen = FakeOcrEngine.render(WIDTH, HEIGHT, SCRIPT);
+        return new FakeOcrEngine(SCRIPT, 0).recognize(screen);
+    }
+
+    @Test
+    public void recognizesWordsLinesAndBlocks() {
+        TextIndex text = recognizeScreen();
+
+        assertEquals(Arrays.asList("premi", "per", "continuare", "nuova", "partita"), texts(text.getBoxes(TextBox.ELEMENT)));
+        assertEquals(Arrays.asList("premi per", "continuare", "nuova partita"), texts(text.getBoxes(TextBox.LINE)));
+        assertEquals(Arrays.asList("premi per\ncontinuare", "nuova partita"), texts(text.getBoxes(TextBox.BLOCK)));
+
+        TextBox block = text.getBoxes(TextBox.BLOCK).get(0);
+        assertEquals(60, block.left);
+        assertEquals(60, block.top);
+        assertEquals(240, block.right);
+        assertEquals(152, block.bottom);
+    }
+
+    @Test
+    public void cropKeepsWordsAtLeastHalfVisible() {
+        IntArrayImage screen = FakeOcrEngine.render(WIDTH, HEIGHT, SCRIPT);
+        IntArrayImage crop = screen.crop(0, 0, 200, HEIGHT);
+
+        TextIndex text = new FakeOcrEngine(SCRIPT, 0).recognize(crop);
+
+        // "partita" shows 34 of its 126 columns
+        assertEquals(Arrays.asList("premi", "per", "continuare", "nuova"), texts(text.getBoxes(TextBox.ELEMENT)));
+
+        // boxes are in crop coordinates, clipped to the visible pixels
+        TextBox per = text.getBoxes(TextBox.ELEMENT).get(1);
+        assertEquals(166, per.left);
+        assertEquals(200, per.right);
+    }
+
+    @Test
+    public void listenerGetsTheLinesInReadingOrder() {
+        IntArrayImage screen = FakeOcrEngine.render(WIDTH, HEIGHT, SCRIPT);
+        final ArrayList<String> streamed = new ArrayList<>();
+
+        TextIndex text = new FakeOcrEngine(SCRIPT, 0).recognize(screen, new OcrEngine.LinesListener() {
+            @Override
+            public void onLinesReady(List<TextBox> lines) {
+                streamed.addAll(texts(lines));
+            }
+        });
+
+        assertEquals(Arrays.asList("premi per", "continuare", "nuova partita"), streamed);
+        assertEquals(streamed, texts(text.getLinesInReadingOrder()));
+    }
+
+    @Test
+    public void readRegionReadsTheWordsCenteredInside() {
+        TextIndex text = recognizeScreen();
+
+        assertEquals(Arrays.asList("premi per\ncontinuare", "nuova partita"), text.readRegion(0, 0, WIDTH, HEIGHT, "\n"));
+        assertEquals(Arrays.asList("premi per continuare"), text.readRegion(0, 0, WIDTH, 200, " "));
+        // the centers of "premi" and "partita" are at y = 80 and x = 229
+        assertEquals(Arrays.asList("continuare", "nuova"), text.readRegion(60, 100, 228, HEIGHT, "\n"));
+        assertEquals(new ArrayList<String>(), text.readRegion(300, 0, WIDTH, HEIGHT, "\n"));
+    }
+
+    @Test
+    public void nearestAndBlockOf() {
+        TextIndex text = recognizeScreen();
+
+        assertEquals("premi", text.nearest(155, 80, TextBox.ELEMENT, 50).text);
+        assertEquals("nuova partita", text.nearest(200, 300, TextBox.LINE, 50).text);
+        assertNull(text.nearest(390, 10, TextBox.ELEMENT, 50));
+
+        TextBox partita = text.nearest(200, 260, TextBox.ELEMENT, 0);
+        assertEquals("partita", partita.text);
+        assertEquals("nuova partita", text.blockOf(partita).text);
+    }
+
+    @Test
+    public void scaledIndexKeepsTheText() {
+        TextIndex text = recognizeScreen().scaled(0.5f, WIDTH / 2, HEIGHT / 2);
+
+        TextBox continuare = text.getBoxes(TextBox.ELEMENT).get(2);
+        assertEquals("continuare", continuare.text);
+        assertEquals(30, continuare.left);
+        assertEquals(56, continuare.top);
+        assertEquals(120, continuare.right);
+        assertEquals(76, continuare.bottom);
+
+        assertEquals(Arrays.asList("premi per\ncontinuare", "nuova partita"), text.readRegion(0, 0, WIDTH / 2, HEIGHT / 2, "\n"));
+        assertEquals("partita", text.nearest(100, 130, TextBox.ELEMENT, 0).text);
+    }
+
+    @Test
+    public void blocksBecomeUtterances() {
+        TextIndex text = recognizeScreen();
+
+        ArrayList<String> blocks = new ArrayList<>();
+        for (TextBox block : text.getBoxes(TextBox.BLOCK)) {
+            blocks.add(block.text.replace("\n", " "));
+        }
+
+        TextBatcher batcher = new TextBatcher(4000, TextBatcher.DEFAULT_BATCH_CHARS);
+        assertEquals(Arrays.asList("premi per continuare. nuova partita"), batcher.batch(blocks));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TextBatcherTest {
+    @Test
+    public void joinsShortBlocksAsSentences() {
+        TextBatcher batcher = new TextBatcher(4000, 200);
+
+        assertEquals(Arrays.asList("Ciao. Come stai? Bene"),
+                batcher.batch(Arrays.asList("Ciao", "Come stai?", "Bene")));
+    }
+
+    @Test
+    public void skipsEmptyBlocks() {
+        TextBatcher batcher = new TextBatcher(4000, 200);
+
+        assertEquals(Arrays.asList("Ciao"), batcher.batch(Arrays.asList("  ", "", " Ciao ")));
+        assertEquals(new ArrayList<String>(), batcher.batch(new ArrayList<String>()));
+    }
+
+    @Test
+    public void startsANewBatchWhenFull() {
+        TextBatcher batcher = new TextBatcher(100, 20);
+
+        // 10 + ". " + 10 is over 20
+        assertEquals(Arrays.asList("aaaaaaaaaa", "bbbbbbbbbb. cc"),
+                batcher.batch(Arrays.asList("aaaaaaaaaa", "bbbbbbbbbb", "cc")));
+    }
+
+    @Test
+    public void longBlockIsSpokenOnItsOwn() {
+        TextBatcher batcher = new TextBatcher(50, 10);
+
+        assertEquals(Arrays.asList("ciao", "questo blocco e lungo", "fine"),
+                batcher.batch(Arrays.asList("ciao", "questo blocco e lungo", "fine")));
+    }
+
+    @Test
+    public void splitsAtSentenceEnds() {
+        TextBatcher batcher = new TextBatcher(30, 10);
+
+        assertEquals(Arrays.asList("Uno due tre.", "Quattro cinque sei. Sette"),
+                batcher.batch(Arrays.asList("Uno due tre. Quattro cinque sei. Sette")));
+    }
+
+    @Test
+    public void splitsAtSpacesWithoutSentenceEnds() {
+        TextBatcher batcher = new TextBatcher(10, 10);
+
+        assertEquals(Arrays.asList("aaaa bbbb", "cccc"), batcher.batch(Arrays.asList("aaaa bbbb cccc")));
+    }
+
+    @Test
+    public void cutsWordsLongerThanMaxChars() {
+        TextBatcher batcher = new TextBatcher(4, 4);
+
+        assertEquals(Arrays.asList("abcd", "efgh", "ij"), batcher.batch(Arrays.asList("abcdefghij")));
+    }
+
+    @Test
+    public void utterancesFitAndKeepTheText() {
+        Random random = new Random(2020);
+        String[] words = { "a", "il", "per", "gioca", "castello.", "attenzione!", "supercalifragilistico" };
+
+        for (int run = 0; run < 200; run++) {
+            int max_chars = 8 + random.nextInt(60);
+            TextBatcher batcher = new TextBatcher(max_chars, 1 + random.nextInt(2 * max_chars));
+
+            ArrayList<String> blocks = new ArrayList<>();
+            StringBuilder all_words = new StringBuilder();
+            for (int b = random.nextInt(6); b > 0; b--) {
+                StringBuilder block = new StringBuilder();
+                for (int w = 1 + random.nextInt(30); w > 0; w--) {
+                    String word = words[random.nextInt(words.length)];
+                    block.append(word).append(' ');
+                    all_words.append(word);
+                }
+                blocks.add(block.toString());
+            }
+
+            List<String> utterances = batcher.batch(blocks);
+
+            StringBuilder spoken = new StringBuilder();
+            for (String utterance : utterances) {
+                assertTrue(utterance, utterance.length() <= max_chars);
+                assertTrue(utterance, !utterance.isEmpty());
+                spoken.append(utterance);
+            }
+            // only separators are added or dropped
+            assertEquals(all_words.toString().replace(".", ""), spoken.toString().replaceAll("[. ]", ""));
+        }
+    }
+}
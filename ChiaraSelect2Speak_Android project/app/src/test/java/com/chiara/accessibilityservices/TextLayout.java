@@ -0,0 +1,54 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/* Synthetic screens for the JVM tests and benchmarks: paragraphs of random words, laid out as a
+ * game would show them, as a script for FakeOcrEngine. */
+class TextLayout {
+    static final int TEXT_HEIGHT = 40, LINE_SPACING = 52, BLOCK_SPACING = 90, MARGIN = 60; // [px]
+    static final int CHAR_WIDTH = 18, WORD_SPACING = 16; // [px]
+
+    /* Paragraphs of 1 to 5 lines of words, filling a width x height screen top to bottom. */
+    static List<TextBox> paragraphs(Random random, int width, int height, String[] words) {
+        ArrayList<TextBox> script = new ArrayList<>();
+        int y = MARGIN, block = 0, line = 0;
+
+        while (true) {
+            int lines = 1 + random.nextInt(5);
+            if (y + lines * LINE_SPACING > height - MARGIN) break;
+
+            for (int l = 0; l < lines; l++, line++, y += LINE_SPACING) {
+                int x = MARGIN;
+                while (true) {
+                    String word = words[random.nextInt(words.length)];
+                    int word_width = word.length() * CHAR_WIDTH;
+                    if (x + word_width > width - MARGIN) break;
+
+                    script.add(new TextBox(TextBox.ELEMENT, word, x, y, x + word_width, y + TEXT_HEIGHT, block, line, script.size()));
+                    x += word_width + WORD_SPACING;
+                }
+            }
+
+            block++;
+            y += BLOCK_SPACING;
+        }
+
+        return script;
+    }
+}
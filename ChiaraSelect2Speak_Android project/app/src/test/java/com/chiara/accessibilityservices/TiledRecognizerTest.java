@@ -0,0 +1,217 @@
+/*
+Copyright (C) 2020 Luca Randazzo
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, version 3 of the License.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details here:
+<https://www.gnu.org/licenses/>.
+*/
+
+package com.chiara.accessibilityservices;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/* Tiling and merging of TiledRecognizer, with FakeOcrEngine recognizing the tiles. */
+public class TiledRecognizerTest {
+    // narrower than the tile overlap
+    private static final String[] WORDS = { "la", "di", "il", "per", "un", "gioca", "esci", "premi", "drago" };
+
+    private static TextBox word(String text, int left, int top, int right, int bottom, int block, int line) {
+        return new TextBox(TextBox.ELEMENT, text, left, top, right, bottom, block, line, -1);
+    }
+
+    private static List<String> texts(List<TextBox> boxes) {
+        ArrayList<String> texts = new ArrayList<>();
+        for (TextBox box : boxes) texts.add(box.text);
+        return texts;
+    }
+
+    @Test
+    public void tileCoresCoverTheBitmapOnce() {
+        int[][] sizes = { { 1080, 2280 }, { 2280, 1080 }, { 1000, 1000 }, { 300, 5000 } };
+
+        for (int[] size : sizes) {
+            int width = size[0], height = size[1];
+            List<int[]> tiles = TiledRecognizer.computeTiles(width, height, 512, TiledRecognizer.TILE_OVERLAP);
+
+            for (int[] tile : tiles) {
+                assertTrue(tile[0] >= 0 && tile[1] >= 0 && tile[2] <= width && tile[3] <= height);
+                assertTrue(tile[4] >= tile[0] && tile[5] >= tile[1] && tile[6] <= tile[2] && tile[7] <= tile[3]);
+            }
+
+            for (int y = 0; y < height; y += 7) {
+                for (int x = 0; x < width; x += 7) {
+                    int cores = 0;
+                    for (int[] tile : tiles) {
+                        if (x >= tile[4] && x < tile[6] && y >= tile[5] && y < tile[7]) cores++;
+                    }
+                    assertEquals(width + "x" + height + " at " + x + "," + y, 1, cores);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void smallBitmapsAreNotSplit() {
+        List<int[]> tiles = TiledRecognizer.computeTiles(600, 600, 512, TiledRecognizer.TILE_OVERLAP);
+
+        assertEquals(1, tiles.size());
+        assertTrue(Arrays.equals(new int[] { 0, 0, 600, 600, 0, 0, 600, 600 }, tiles.get(0)));
+    }
+
+    @Test
+    public void wordsOfTheOverlapAreKeptOnce() {
+        // two tiles side by side, the cores meet at x = 500
+        List<int[]> tiles = TiledRecognizer.computeTiles(1000, 100, 600, 200);
+        assertEquals(2, tiles.size());
+
+        List<List<TextBox>> tile_boxes = new ArrayList<>();
+        tile_boxes.add(Arrays.asList(
+                word("il", 380, 30, 420, 70, 0, 0),
+                word("castello", 450, 30, 550, 70, 0, 0)));
+        tile_boxes.add(Arrays.asList(
+                word("castello", 450, 30, 550, 70, 0, 0),
+                word("incantato", 560, 30, 700, 70, 0, 0)));
+
+        TextIndex text = TiledRecognizer.mergeTiles(tiles, tile_boxes, 1000, 100);
+
+        assertEquals(Arrays.asList("il", "castello", "incantato"), texts(text.getBoxes(TextBox.ELEMENT)));
+        assertEquals(Arrays.asList("il castello incantato"), texts(text.getBoxes(TextBox.LINE)));
+        assertEquals(1, text.getBoxes(TextBox.BLOCK).size());
+    }
+
+    @Test
+    public void linesFarApartAreNotJoined() {
+        // two tiles one above the other, the cores meet at y = 500
+        List<int[]> tiles = TiledRecognizer.computeTiles(100, 1000, 600, 200);
+        assertEquals(2, tiles.size());
+
+        List<List<TextBox>> tile_boxes = new ArrayList<>();
+        tile_boxes.add(Arrays.asList(word("sopra", 10, 100, 90, 140, 0, 0)));
+        tile_boxes.add(Arrays.asList(word("sotto", 10, 800, 90, 840, 0, 0)));
+
+        TextIndex text = TiledRecognizer.mergeTiles(tiles, tile_boxes, 100, 1000);
+
+        assertEquals(Arrays.asList("sopra", "sotto"), texts(text.getBoxes(TextBox.LINE)));
+        assertEquals(Arrays.asList("sopra", "sotto"), texts(text.getBoxes(TextBox.BLOCK)));
+    }
+
+    @Test
+    public void mergedTilesReadAsTheWholeScreen() {
+        int width = 1600, height = 1200;
+        List<TextBox> script = TextLayout.paragraphs(new Random(2020), width, height, WORDS);
+        IntArrayImage screen = FakeOcrEngine.render(width, height, script);
+        FakeOcrEngine engine = new FakeOcrEngine(script, 0);
+
+        // each tile recognized on its own, its boxes moved to screen coordinates
+        List<int[]> tiles = TiledRecognizer.computeTiles(width, height, 512, TiledRecognizer.TILE_OVERLAP);
+        assertTrue(tiles.size() > 4);
+        List<List<TextBox>> tile_boxes = new ArrayList<>();
+        for (int[] tile : tiles) {
+            TextIndex tile_text = engine.recognize(screen.crop(tile[0], tile[1], tile[2], tile[3]));
+            ArrayList<TextBox> boxes = new ArrayList<>();
+            for (TextBox box : tile_text.getBoxes(TextBox.ELEMENT)) {
+                boxes.add(new TextBox(box.level, box.text, box.left + tile[0], box.top + tile[1],
+                        box.right + tile[0], box.bottom + tile[1], box.block, box.line, box.element));
+            }
+            tile_boxes.add(boxes);
+        }
+
+        TextIndex merged = TiledRecognizer.mergeTiles(tiles, tile_boxes, width, height);
+        TextIndex whole = engine.recognize(screen);
+
+        assertEquals(script.size(), merged.getBoxes(TextBox.ELEMENT).size());
+        assertEquals(texts(whole.getLinesInReadingOrder()), texts(merged.getLinesInReadingOrder()));
+        assertEquals(texts(whole.getBoxes(TextBox.BLOCK)), texts(merged.getBoxes(TextBox.BLOCK)));
+    }
+
+    @Test
+    public void interruptedCallerWaitsForTheRunningTile() throws Exception {
+        final List<int[]> tiles = TiledRecognizer.computeTiles(1000, 100, 600, 200);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        final CountDownLatch last_tile_started = new CountDownLatch(1);
+        final CountDownLatch last_tile_release = new CountDownLatch(1);
+        final AtomicBoolean last_tile_done = new AtomicBoolean(false);
+
+        final List<Future<List<TextBox>>> futures = new ArrayList<>();
+        futures.add(executor.submit(new Callable<List<TextBox>>() {
+            @Override
+            public List<TextBox> call() {
+                return Arrays.asList(word("il", 380, 30, 420, 70, 0, 0));
+            }
+        }));
+        futures.add(executor.submit(new Callable<List<TextBox>>() {
+            @Override
+            public List<TextBox> call() throws InterruptedException {
+                last_tile_started.countDown();
+                // a recognizer does not stop when interrupted
+                while (true) {
+                    try {
+                        last_tile_release.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        // keep reading the bitmap
+                    }
+                }
+                last_tile_done.set(true);
+                return Arrays.asList(word("castello", 450, 30, 550, 70, 0, 0));
+            }
+        }));
+
+        final List<List<TextBox>> result = new ArrayList<>();
+        final AtomicBoolean returned_after_tile = new AtomicBoolean(false);
+        final AtomicBoolean still_interrupted = new AtomicBoolean(false);
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                result.addAll(TiledRecognizer.collectTiles(tiles, futures, new AtomicBoolean(false), 1000, 100, null));
+                returned_after_tile.set(last_tile_done.get());
+                still_interrupted.set(Thread.currentThread().isInterrupted());
+            }
+        };
+        caller.start();
+
+        try {
+            // interrupt the caller while it waits on the last tile
+            last_tile_started.await();
+            while (caller.getState() != Thread.State.WAITING) Thread.sleep(1);
+            caller.interrupt();
+
+            caller.join(200);
+            assertTrue("returned while the last tile was running", caller.isAlive());
+        } finally {
+            last_tile_release.countDown();
+        }
+
+        caller.join(5000);
+        assertFalse(caller.isAlive());
+        assertTrue(returned_after_tile.get());
+        assertTrue(still_interrupted.get());
+        assertEquals(1, result.size());
+        assertEquals(Arrays.asList("il"), texts(result.get(0)));
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}